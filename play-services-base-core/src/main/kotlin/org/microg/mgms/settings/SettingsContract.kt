@@ -58,6 +58,9 @@ object SettingsContract {
         const val LEARNT_WIFI = "gcm_learnt_wifi"
         const val LEARNT_OTHER = "gcm_learnt_other"
 
+        const val NIO_CONNECTION = "gcm_nio_connection"
+        const val ADAPTIVE_HEARTBEAT = "gcm_adaptive_heartbeat"
+
         val PROJECTION = arrayOf(
             FULL_LOG,
             LAST_PERSISTENT_ID,
@@ -69,6 +72,8 @@ object SettingsContract {
             LEARNT_MOBILE,
             LEARNT_WIFI,
             LEARNT_OTHER,
+            NIO_CONNECTION,
+            ADAPTIVE_HEARTBEAT,
         )
     }
 
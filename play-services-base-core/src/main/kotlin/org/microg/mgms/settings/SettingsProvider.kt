@@ -171,6 +171,9 @@ class SettingsProvider : ContentProvider() {
             Gcm.LEARNT_WIFI -> preferences.getInt(key, INTERVAL)
             Gcm.LEARNT_OTHER -> preferences.getInt(key, INTERVAL)
 
+            Gcm.NIO_CONNECTION -> getSettingsBoolean(key, false)
+            Gcm.ADAPTIVE_HEARTBEAT -> getSettingsBoolean(key, false)
+
             else -> throw IllegalArgumentException("Unknown key: $key")
         }
     }
@@ -194,6 +197,9 @@ class SettingsProvider : ContentProvider() {
                 Gcm.LEARNT_WIFI -> editor.putInt(key, value as Int)
                 Gcm.LEARNT_OTHER -> editor.putInt(key, value as Int)
 
+                Gcm.NIO_CONNECTION -> editor.putBoolean(key, value as Boolean)
+                Gcm.ADAPTIVE_HEARTBEAT -> editor.putBoolean(key, value as Boolean)
+
                 else -> throw IllegalArgumentException("Unknown key: $key")
             }
         }
@@ -27,11 +27,13 @@ public final class GcmConstants {
     public static final String EXTRA_APP_VERSION_NAME = "app_ver_name";
     public static final String EXTRA_COLLAPSE_KEY = "collapse_key";
     public static final String EXTRA_DELETE = "delete";
+    public static final String EXTRA_DELIVERED_PRIORITY = "google.delivered_priority";
     public static final String EXTRA_ERROR = "error";
     public static final String EXTRA_FROM = "from";
     public static final String EXTRA_KID = "kid";
     public static final String EXTRA_MESSENGER = "google.messenger";
     public static final String EXTRA_MESSAGE_ID = "google.message_id";
+    public static final String EXTRA_PRIORITY = "google.priority";
     public static final String EXTRA_REGISTRATION_ID = "registration_id";
     public static final String EXTRA_RETRY_AFTER = "Retry-After";
     public static final String EXTRA_SENDER = "sender";
@@ -28,6 +28,7 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.legacy.content.WakefulBroadcastReceiver;
@@ -39,6 +40,7 @@ import org.microg.gms.auth.AuthConstants;
 import org.microg.gms.common.ForegroundServiceContext;
 import org.microg.gms.common.ForegroundServiceInfo;
 import org.microg.gms.gcm.McsService;
+import org.microg.gms.gcm.McsWakeupScheduler;
 import org.microg.gms.people.PeopleManager;
 
 @SuppressLint("NonConstantResourceId")
@@ -124,8 +126,12 @@ public class CheckinService extends IntentService {
     }
 
     static void schedule(Context context) {
+        long checkinTime = Math.max(LastCheckinInfo.read(context).getLastCheckin() + REGULAR_CHECKIN_INTERVAL, System.currentTimeMillis() + BACKUP_CHECKIN_DELAY);
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         @SuppressLint("UnspecifiedImmutableFlag") PendingIntent pendingIntent = PendingIntent.getService(context, TriggerReceiver.class.getName().hashCode(), new Intent(context, TriggerReceiver.class), PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
-        alarmManager.set(AlarmManager.RTC, Math.max(LastCheckinInfo.read(context).getLastCheckin() + REGULAR_CHECKIN_INTERVAL, System.currentTimeMillis() + BACKUP_CHECKIN_DELAY), pendingIntent);
+        alarmManager.set(AlarmManager.RTC, checkinTime, pendingIntent);
+        // Checkin does not wake the device, but runs along with an MCS wakeup if one happens after it is due
+        long triggerAt = checkinTime - System.currentTimeMillis() + SystemClock.elapsedRealtime();
+        McsWakeupScheduler.schedule(context, McsWakeupScheduler.CHECKIN, triggerAt, triggerAt);
     }
 }
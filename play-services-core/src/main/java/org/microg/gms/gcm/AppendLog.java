@@ -0,0 +1,120 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * File of lines that are appended one at a time, so that recording a change is O(1) and survives process death. The
+ * file is rewritten as a whole to drop lines that became obsolete. Not thread-safe, callers synchronize.
+ */
+class AppendLog implements Closeable {
+    interface LineReader {
+        void onLine(String line);
+    }
+
+    private final File file;
+    private final String tag;
+    private FileOutputStream out;
+    private int records;
+
+    /**
+     * @param tag used for logging errors on behalf of the owner
+     */
+    AppendLog(File file, String tag) {
+        this.file = file;
+        this.tag = tag;
+    }
+
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Passes every non-empty line of the file to the reader, in the order they were written.
+     */
+    void read(LineReader reader) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                records++;
+                reader.onLine(line);
+            }
+        } catch (IOException e) {
+            Log.w(tag, "Failed reading " + file.getName(), e);
+        }
+    }
+
+    void append(String line) {
+        try {
+            if (out == null) out = new FileOutputStream(file, true);
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            records++;
+        } catch (IOException e) {
+            Log.w(tag, "Failed writing " + file.getName(), e);
+            closeOutput();
+        }
+    }
+
+    /**
+     * Replaces the file with the given lines. The new file is synced before it replaces the old one, so a crash
+     * leaves either of them intact.
+     */
+    void rewrite(Iterable<String> lines) {
+        closeOutput();
+        File temp = new File(file.getPath() + ".tmp");
+        int count = 0;
+        try (FileOutputStream tempOut = new FileOutputStream(temp)) {
+            StringBuilder sb = new StringBuilder();
+            for (String line : lines) {
+                sb.append(line).append('\n');
+                count++;
+            }
+            tempOut.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            tempOut.getFD().sync();
+        } catch (IOException e) {
+            Log.w(tag, "Failed rewriting " + file.getName(), e);
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.w(tag, "Failed replacing " + file.getName());
+            return;
+        }
+        records = count;
+    }
+
+    /**
+     * @return the number of lines in the file
+     */
+    int getRecords() {
+        return records;
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeOutput();
+    }
+}
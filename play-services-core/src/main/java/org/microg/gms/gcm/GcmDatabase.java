@@ -5,19 +5,30 @@
 
 package org.microg.gms.gcm;
 
+import android.content.BroadcastReceiver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import org.microg.gms.common.PackageUtils;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class GcmDatabase extends SQLiteOpenHelper {
     public static final String DB_NAME = "gcmstatus";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 2;
     private static final String CREATE_TABLE_APPS = "CREATE TABLE apps (" +
             "package_name TEXT," +
             "last_error TEXT DEFAULT ''," +
@@ -47,6 +58,52 @@ public class GcmDatabase extends SQLiteOpenHelper {
     private static final String FIELD_TIMESTAMP = "timestamp";
     private static final String FIELD_REGISTER_ID = "register_id";
 
+    private static final String CREATE_INDEX_APPS_LAST_MESSAGE = "CREATE INDEX IF NOT EXISTS apps_last_message_timestamp ON apps (last_message_timestamp);";
+
+    // Column order matches the table definitions, so the indices below are valid for full rows as well
+    private static final String[] APP_COLUMNS = {FIELD_PACKAGE_NAME, FIELD_LAST_ERROR, FIELD_LAST_MESSAGE_TIMESTAMP,
+            FIELD_TOTAL_MESSAGE_COUNT, FIELD_TOTAL_MESSAGE_BYTES, FIELD_ALLOW_REGISTER, FIELD_WAKE_FOR_DELIVERY};
+    private static final int APP_PACKAGE_NAME = 0;
+    private static final int APP_LAST_ERROR = 1;
+    private static final int APP_LAST_MESSAGE_TIMESTAMP = 2;
+    private static final int APP_TOTAL_MESSAGE_COUNT = 3;
+    private static final int APP_TOTAL_MESSAGE_BYTES = 4;
+    private static final int APP_ALLOW_REGISTER = 5;
+    private static final int APP_WAKE_FOR_DELIVERY = 6;
+    private static final String[] REGISTRATION_COLUMNS = {FIELD_PACKAGE_NAME, FIELD_SIGNATURE, FIELD_TIMESTAMP, FIELD_REGISTER_ID};
+    private static final int REGISTRATION_PACKAGE_NAME = 0;
+    private static final int REGISTRATION_SIGNATURE = 1;
+    private static final int REGISTRATION_TIMESTAMP = 2;
+    private static final int REGISTRATION_REGISTER_ID = 3;
+
+    private static final String WHERE_PACKAGE_NAME = FIELD_PACKAGE_NAME + " = ?";
+    private static final String WHERE_PACKAGE_NAME_AND_SIGNATURE = FIELD_PACKAGE_NAME + " = ? AND " + FIELD_SIGNATURE + " = ?";
+
+    /**
+     * Sent to the persistent process when an app or its registrations changed in another process.
+     */
+    public static final String ACTION_APP_CHANGED = "org.microg.gms.gcm.APP_CHANGED";
+    public static final String EXTRA_PACKAGE_NAME = "package_name";
+    // Held by us only, so no other app can send ACTION_APP_CHANGED to our receiver
+    private static final String PERMISSION_APP_CHANGED = "com.mgoogle.android.c2dm.permission.SEND";
+
+    public interface AppChangedListener {
+        /**
+         * @param packageName the app that changed, null if all apps might have changed
+         */
+        void onAppChanged(String packageName);
+    }
+
+    // Read-through cache of apps and registrations by package name, shared by all instances of the persistent
+    // process. A null value means that there is no row for the package.
+    private static final Object indexLock = new Object();
+    private static final Map<String, App> appIndex = new HashMap<>();
+    private static final Map<String, List<Registration>> registrationIndex = new HashMap<>();
+    private static Boolean indexEnabled;
+    // Incremented on every invalidation, so that a concurrent lookup does not store outdated results
+    private static int indexGeneration;
+    private static final List<AppChangedListener> appChangedListeners = new CopyOnWriteArrayList<>();
+
     private final Context context;
 
     public GcmDatabase(Context context) {
@@ -65,13 +122,13 @@ public class GcmDatabase extends SQLiteOpenHelper {
         public final boolean wakeForDelivery;
 
         private App(Cursor cursor) {
-            packageName = cursor.getString(cursor.getColumnIndexOrThrow(FIELD_PACKAGE_NAME));
-            lastError = cursor.getString(cursor.getColumnIndexOrThrow(FIELD_LAST_ERROR));
-            lastMessageTimestamp = cursor.getLong(cursor.getColumnIndexOrThrow(FIELD_LAST_MESSAGE_TIMESTAMP));
-            totalMessageCount = cursor.getLong(cursor.getColumnIndexOrThrow(FIELD_TOTAL_MESSAGE_COUNT));
-            totalMessageBytes = cursor.getLong(cursor.getColumnIndexOrThrow(FIELD_TOTAL_MESSAGE_BYTES));
-            allowRegister = cursor.getLong(cursor.getColumnIndexOrThrow(FIELD_ALLOW_REGISTER)) == 1;
-            wakeForDelivery = cursor.getLong(cursor.getColumnIndexOrThrow(FIELD_WAKE_FOR_DELIVERY)) == 1;
+            packageName = cursor.getString(APP_PACKAGE_NAME);
+            lastError = cursor.getString(APP_LAST_ERROR);
+            lastMessageTimestamp = cursor.getLong(APP_LAST_MESSAGE_TIMESTAMP);
+            totalMessageCount = cursor.getLong(APP_TOTAL_MESSAGE_COUNT);
+            totalMessageBytes = cursor.getLong(APP_TOTAL_MESSAGE_BYTES);
+            allowRegister = cursor.getLong(APP_ALLOW_REGISTER) == 1;
+            wakeForDelivery = cursor.getLong(APP_WAKE_FOR_DELIVERY) == 1;
         }
 
     }
@@ -83,10 +140,10 @@ public class GcmDatabase extends SQLiteOpenHelper {
         public final String registerId;
 
         public Registration(Cursor cursor) {
-            packageName = cursor.getString(cursor.getColumnIndexOrThrow(FIELD_PACKAGE_NAME));
-            signature = cursor.getString(cursor.getColumnIndexOrThrow(FIELD_SIGNATURE));
-            timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(FIELD_TIMESTAMP));
-            registerId = cursor.getString(cursor.getColumnIndexOrThrow(FIELD_REGISTER_ID));
+            packageName = cursor.getString(REGISTRATION_PACKAGE_NAME);
+            signature = normalizeSignature(cursor.getString(REGISTRATION_SIGNATURE));
+            timestamp = cursor.getLong(REGISTRATION_TIMESTAMP);
+            registerId = cursor.getString(REGISTRATION_REGISTER_ID);
         }
     }
 
@@ -94,12 +151,13 @@ public class GcmDatabase extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_TABLE_APPS);
         db.execSQL(CREATE_TABLE_REGISTRATIONS);
+        db.execSQL(CREATE_INDEX_APPS_LAST_MESSAGE);
         importLegacyData(db);
     }
 
     public synchronized List<App> getAppList() {
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(TABLE_APPS, null, null, null, null, null, null);
+        Cursor cursor = db.query(TABLE_APPS, APP_COLUMNS, null, null, null, null, FIELD_LAST_MESSAGE_TIMESTAMP + " DESC");
         if (cursor != null) {
             List<App> result = new ArrayList<>();
             while (cursor.moveToNext()) {
@@ -113,7 +171,7 @@ public class GcmDatabase extends SQLiteOpenHelper {
 
     public synchronized List<Registration> getRegistrationList() {
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(TABLE_REGISTRATIONS, null, null, null, null, null, null);
+        Cursor cursor = db.query(TABLE_REGISTRATIONS, REGISTRATION_COLUMNS, null, null, null, null, null);
         if (cursor != null) {
             List<Registration> result = new ArrayList<>();
             while (cursor.moveToNext()) {
@@ -126,16 +184,31 @@ public class GcmDatabase extends SQLiteOpenHelper {
     }
 
 
-    public synchronized List<Registration> getRegistrationsByApp(String packageName) {
+    public List<Registration> getRegistrationsByApp(String packageName) {
+        if (!isIndexEnabled()) return queryRegistrationsByApp(packageName);
+        int startGeneration;
+        synchronized (indexLock) {
+            List<Registration> registrations = registrationIndex.get(packageName);
+            if (registrations != null) return registrations;
+            startGeneration = indexGeneration;
+        }
+        List<Registration> registrations = queryRegistrationsByApp(packageName);
+        synchronized (indexLock) {
+            if (startGeneration == indexGeneration) registrationIndex.put(packageName, registrations);
+        }
+        return registrations;
+    }
+
+    private synchronized List<Registration> queryRegistrationsByApp(String packageName) {
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(TABLE_REGISTRATIONS, null, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName}, null, null, null);
+        Cursor cursor = db.query(TABLE_REGISTRATIONS, REGISTRATION_COLUMNS, WHERE_PACKAGE_NAME, new String[]{packageName}, null, null, null);
         if (cursor != null) {
             List<Registration> result = new ArrayList<>();
             while (cursor.moveToNext()) {
                 result.add(new Registration(cursor));
             }
             cursor.close();
-            return result;
+            return Collections.unmodifiableList(result);
         }
         return Collections.emptyList();
     }
@@ -144,53 +217,80 @@ public class GcmDatabase extends SQLiteOpenHelper {
         SQLiteDatabase db = getWritableDatabase();
         ContentValues cv = new ContentValues();
         cv.put(FIELD_ALLOW_REGISTER, allowRegister ? 1 : 0);
-        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        db.update(TABLE_APPS, cv, WHERE_PACKAGE_NAME, new String[]{packageName});
+        noteChanged(packageName);
     }
 
     public synchronized void setAppWakeForDelivery(String packageName, boolean wakeForDelivery) {
         SQLiteDatabase db = getWritableDatabase();
         ContentValues cv = new ContentValues();
         cv.put(FIELD_WAKE_FOR_DELIVERY, wakeForDelivery ? 1 : 0);
-        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        db.update(TABLE_APPS, cv, WHERE_PACKAGE_NAME, new String[]{packageName});
+        noteChanged(packageName);
     }
 
 
     public synchronized void removeApp(String packageName) {
         SQLiteDatabase db = getWritableDatabase();
-        db.delete(TABLE_REGISTRATIONS, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
-        db.delete(TABLE_APPS, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        db.delete(TABLE_REGISTRATIONS, WHERE_PACKAGE_NAME, new String[]{packageName});
+        db.delete(TABLE_APPS, WHERE_PACKAGE_NAME, new String[]{packageName});
+        noteChanged(packageName);
     }
 
     public synchronized void noteAppRegistrationError(String packageName, String error) {
         SQLiteDatabase db = getWritableDatabase();
         ContentValues cv = new ContentValues();
         cv.put(FIELD_LAST_ERROR, error);
-        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        db.update(TABLE_APPS, cv, WHERE_PACKAGE_NAME, new String[]{packageName});
+        noteChanged(packageName);
     }
 
-    public synchronized void noteAppMessage(String packageName, int numBytes) {
+    /**
+     * Adds the message counters collected by {@link McsMessageStats} in a single transaction.
+     */
+    public synchronized void noteAppMessages(Collection<McsMessageStats.Delta> deltas) {
         SQLiteDatabase db = getWritableDatabase();
         db.beginTransaction();
-
-        App app = getApp(db, packageName);
-        ContentValues cv = new ContentValues();
-        cv.put(FIELD_LAST_MESSAGE_TIMESTAMP, System.currentTimeMillis());
-        if (app == null) {
-            cv.put(FIELD_PACKAGE_NAME, packageName);
-            cv.put(FIELD_TOTAL_MESSAGE_COUNT, 1);
-            cv.put(FIELD_TOTAL_MESSAGE_BYTES, numBytes);
-            db.insert(TABLE_APPS, null, cv);
-        } else {
-            cv.put(FIELD_TOTAL_MESSAGE_COUNT, app.totalMessageCount + 1);
-            cv.put(FIELD_TOTAL_MESSAGE_BYTES, app.totalMessageBytes + numBytes);
-            db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        // The UPSERT syntax requires SQLite 3.24, so update first and insert if there is no row yet
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_APPS + " SET " +
+                FIELD_TOTAL_MESSAGE_COUNT + " = " + FIELD_TOTAL_MESSAGE_COUNT + " + ?, " +
+                FIELD_TOTAL_MESSAGE_BYTES + " = " + FIELD_TOTAL_MESSAGE_BYTES + " + ?, " +
+                FIELD_LAST_MESSAGE_TIMESTAMP + " = MAX(IFNULL(" + FIELD_LAST_MESSAGE_TIMESTAMP + ", 0), ?) " +
+                "WHERE " + WHERE_PACKAGE_NAME);
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_APPS + " (" +
+                FIELD_TOTAL_MESSAGE_COUNT + ", " + FIELD_TOTAL_MESSAGE_BYTES + ", " + FIELD_LAST_MESSAGE_TIMESTAMP + ", " +
+                FIELD_PACKAGE_NAME + ") VALUES (?, ?, ?, ?)");
+        try {
+            for (McsMessageStats.Delta delta : deltas) {
+                update.bindLong(1, delta.count);
+                update.bindLong(2, delta.bytes);
+                update.bindLong(3, delta.lastTimestamp);
+                update.bindString(4, delta.packageName);
+                if (update.executeUpdateDelete() == 0) {
+                    insert.bindLong(1, delta.count);
+                    insert.bindLong(2, delta.bytes);
+                    insert.bindLong(3, delta.lastTimestamp);
+                    insert.bindString(4, delta.packageName);
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+            insert.close();
+        }
+        // Only counters changed, other processes read them from the database anyway
+        synchronized (indexLock) {
+            indexGeneration++;
+            for (McsMessageStats.Delta delta : deltas) {
+                appIndex.remove(delta.packageName);
+            }
         }
-
-        db.setTransactionSuccessful();
-        db.endTransaction();
     }
 
     public synchronized void noteAppRegistered(String packageName, String signature, String registrationId) {
+        signature = normalizeSignature(signature);
         SQLiteDatabase db = getWritableDatabase();
         db.beginTransaction();
 
@@ -201,7 +301,7 @@ public class GcmDatabase extends SQLiteOpenHelper {
             db.insert(TABLE_APPS, null, cv);
         } else {
             cv.put(FIELD_LAST_ERROR, "");
-            db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+            db.update(TABLE_APPS, cv, WHERE_PACKAGE_NAME, new String[]{packageName});
         }
 
         cv = new ContentValues();
@@ -213,19 +313,35 @@ public class GcmDatabase extends SQLiteOpenHelper {
 
         db.setTransactionSuccessful();
         db.endTransaction();
+        noteChanged(packageName);
     }
 
     public synchronized void noteAppUnregistered(String packageName, String signature) {
         SQLiteDatabase db = getWritableDatabase();
-        db.delete(TABLE_REGISTRATIONS, FIELD_PACKAGE_NAME + " LIKE ? AND " + FIELD_SIGNATURE + " LIKE ?", new String[]{packageName, signature});
+        db.delete(TABLE_REGISTRATIONS, WHERE_PACKAGE_NAME_AND_SIGNATURE, new String[]{packageName, normalizeSignature(signature)});
+        noteChanged(packageName);
     }
 
     public App getApp(String packageName) {
+        if (!isIndexEnabled()) return queryApp(packageName);
+        int startGeneration;
+        synchronized (indexLock) {
+            if (appIndex.containsKey(packageName)) return appIndex.get(packageName);
+            startGeneration = indexGeneration;
+        }
+        App app = queryApp(packageName);
+        synchronized (indexLock) {
+            if (startGeneration == indexGeneration) appIndex.put(packageName, app);
+        }
+        return app;
+    }
+
+    private synchronized App queryApp(String packageName) {
         return getApp(getReadableDatabase(), packageName);
     }
 
     private App getApp(SQLiteDatabase db, String packageName) {
-        Cursor cursor = db.query(TABLE_APPS, null, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName}, null, null, null, "1");
+        Cursor cursor = db.query(TABLE_APPS, APP_COLUMNS, WHERE_PACKAGE_NAME, new String[]{packageName}, null, null, null, "1");
         if (cursor != null) {
             try {
                 if (cursor.moveToNext()) {
@@ -239,11 +355,19 @@ public class GcmDatabase extends SQLiteOpenHelper {
     }
 
     public Registration getRegistration(String packageName, String signature) {
+        signature = normalizeSignature(signature);
+        if (isIndexEnabled()) {
+            if (signature == null) return null;
+            for (Registration registration : getRegistrationsByApp(packageName)) {
+                if (signature.equals(registration.signature)) return registration;
+            }
+            return null;
+        }
         return getRegistration(getReadableDatabase(), packageName, signature);
     }
 
-    private Registration getRegistration(SQLiteDatabase db, String packageName, String signature) {
-        Cursor cursor = db.query(TABLE_REGISTRATIONS, null, FIELD_PACKAGE_NAME + " LIKE ? AND " + FIELD_SIGNATURE + " LIKE ?", new String[]{packageName, signature}, null, null, null, "1");
+    private synchronized Registration getRegistration(SQLiteDatabase db, String packageName, String signature) {
+        Cursor cursor = db.query(TABLE_REGISTRATIONS, REGISTRATION_COLUMNS, WHERE_PACKAGE_NAME_AND_SIGNATURE, new String[]{packageName, signature}, null, null, null, "1");
         if (cursor != null) {
             try {
                 if (cursor.moveToNext()) {
@@ -271,7 +395,7 @@ public class GcmDatabase extends SQLiteOpenHelper {
             cv.clear();
             if (appInfo.isRegistered()) {
                 cv.put(FIELD_PACKAGE_NAME, appInfo.app);
-                cv.put(FIELD_SIGNATURE, appInfo.appSignature);
+                cv.put(FIELD_SIGNATURE, normalizeSignature(appInfo.appSignature));
                 cv.put(FIELD_REGISTER_ID, appInfo.registerID);
                 db.insert(TABLE_REGISTRATIONS, null, cv);
             }
@@ -281,9 +405,80 @@ public class GcmDatabase extends SQLiteOpenHelper {
         db.endTransaction();
     }
 
+    /**
+     * The index is only used in the persistent process, which does all lookups on the message path. Other processes
+     * read from the database directly and inform the persistent process about their changes.
+     */
+    private boolean isIndexEnabled() {
+        synchronized (indexLock) {
+            if (indexEnabled == null) {
+                indexEnabled = PackageUtils.isPersistentProcess();
+                if (indexEnabled) {
+                    context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+                        @Override
+                        public void onReceive(Context context, Intent intent) {
+                            String packageName = intent.getStringExtra(EXTRA_PACKAGE_NAME);
+                            invalidateIndex(packageName);
+                            for (AppChangedListener listener : appChangedListeners) {
+                                listener.onAppChanged(packageName);
+                            }
+                        }
+                    }, new IntentFilter(ACTION_APP_CHANGED), PERMISSION_APP_CHANGED, null);
+                }
+            }
+            return indexEnabled;
+        }
+    }
+
+    /**
+     * Registers a listener for changes of apps from any process. Must only be used in the persistent process.
+     */
+    public void addAppChangedListener(AppChangedListener listener) {
+        isIndexEnabled();
+        appChangedListeners.add(listener);
+    }
+
+    public void removeAppChangedListener(AppChangedListener listener) {
+        appChangedListeners.remove(listener);
+    }
+
+    private static void invalidateIndex(String packageName) {
+        synchronized (indexLock) {
+            indexGeneration++;
+            if (packageName == null) {
+                appIndex.clear();
+                registrationIndex.clear();
+            } else {
+                appIndex.remove(packageName);
+                registrationIndex.remove(packageName);
+            }
+        }
+    }
+
+    private void noteChanged(String packageName) {
+        invalidateIndex(packageName);
+        Intent intent = new Intent(ACTION_APP_CHANGED);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(EXTRA_PACKAGE_NAME, packageName);
+        context.sendBroadcast(intent);
+    }
+
+    /**
+     * Signatures are lowercase hex digests, see {@link PackageUtils#sha1sum(byte[])}. Lookups are exact, so digests
+     * from other sources, like legacy data, are normalized to the same form.
+     */
+    private static String normalizeSignature(String signature) {
+        return signature == null ? null : signature.toLowerCase(Locale.ROOT);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        throw new IllegalStateException("Upgrades not supported");
+        if (oldVersion < 2) {
+            // Lookups changed from LIKE to exact matches, which use the primary key indices
+            db.execSQL(CREATE_INDEX_APPS_LAST_MESSAGE);
+            // Signatures were matched case-insensitively with LIKE before
+            db.execSQL("UPDATE OR REPLACE " + TABLE_REGISTRATIONS + " SET " + FIELD_SIGNATURE + " = LOWER(" + FIELD_SIGNATURE + ")");
+        }
     }
 
 }
@@ -0,0 +1,78 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks the persistent ids of received messages until the server confirmed our {@code SelectiveAck} for them.
+ * <p>
+ * Ids are acknowledged in batches while the connection is up and are then removed from the {@link PersistentIdJournal},
+ * so that only ids without confirmed acknowledgement have to be sent again in the next {@code LoginRequest}.
+ */
+public class McsAckTracker {
+    // The server expects an acknowledgement after at most 10 unconfirmed messages
+    public static final int MAX_UNACKNOWLEDGED = 10;
+
+    private final PersistentIdJournal journal;
+    // Received, but not yet part of a SelectiveAck
+    private final LinkedHashSet<String> unacknowledged = new LinkedHashSet<>();
+    // Stream id of the SelectiveAck mapped to the ids it contained
+    private final TreeMap<Integer, List<String>> inFlight = new TreeMap<>();
+
+    public McsAckTracker(PersistentIdJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return true if enough ids are unacknowledged that an acknowledgement should be sent right away
+     */
+    public synchronized boolean noteReceived(String persistentId) {
+        unacknowledged.add(persistentId);
+        return unacknowledged.size() >= MAX_UNACKNOWLEDGED;
+    }
+
+    /**
+     * @return all ids that were not yet part of a SelectiveAck, or an empty list
+     */
+    public synchronized List<String> takeUnacknowledged() {
+        List<String> result = new ArrayList<>(unacknowledged);
+        unacknowledged.clear();
+        return result;
+    }
+
+    public synchronized void noteSent(Collection<String> ids, int streamId) {
+        inFlight.put(streamId, new ArrayList<>(ids));
+    }
+
+    /**
+     * Forgets the ids of all SelectiveAcks with a stream id up to and including {@code lastStreamIdReceived}, as
+     * the server confirmed it received them.
+     */
+    public synchronized void confirmStreamId(int lastStreamIdReceived) {
+        Map<Integer, List<String>> confirmed = inFlight.headMap(lastStreamIdReceived, true);
+        if (confirmed.isEmpty()) return;
+        List<String> ids = new ArrayList<>();
+        for (List<String> list : confirmed.values()) {
+            ids.addAll(list);
+        }
+        confirmed.clear();
+        journal.removeAll(ids);
+    }
+
+    /**
+     * Called for a new connection. Everything not confirmed so far is part of the next LoginRequest.
+     */
+    public synchronized void reset() {
+        unacknowledged.clear();
+        inFlight.clear();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers until when apps were added to the temp allowlist, so that they are not added again while a previous grant
+ * still covers the delivery of a burst of messages. Adding an app requires a call into the system server.
+ */
+public class McsAllowlistTracker {
+    public static final long GRANT_DURATION_MS = 10000;
+    // A new grant is only requested once less than this remains, which covers the longest burst of the delivery queue
+    private static final long MIN_REMAINING_MS = 5000;
+    private static final int PRUNE_SIZE = 64;
+
+    // Package name to elapsed realtime the grant expires
+    private final Map<String, Long> expiries = new HashMap<>();
+    private long skipped;
+
+    /**
+     * @return true if the app needs to be added to the temp allowlist
+     */
+    public synchronized boolean needsGrant(String packageName) {
+        Long expiry = expiries.get(packageName);
+        if (expiry != null && expiry - SystemClock.elapsedRealtime() >= MIN_REMAINING_MS) {
+            skipped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that the app was added to the temp allowlist for {@link #GRANT_DURATION_MS}.
+     */
+    public synchronized void noteGranted(String packageName) {
+        long now = SystemClock.elapsedRealtime();
+        if (expiries.size() >= PRUNE_SIZE) {
+            Iterator<Long> iterator = expiries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() <= now) iterator.remove();
+            }
+        }
+        expiries.put(packageName, now + GRANT_DURATION_MS);
+    }
+
+    /**
+     * @return the number of grants that were skipped as a previous grant was still in force
+     */
+    public synchronized long getSkippedCount() {
+        return skipped;
+    }
+}
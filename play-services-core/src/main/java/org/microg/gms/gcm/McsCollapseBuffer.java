@@ -0,0 +1,167 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds back messages with a collapse key for apps that are not woken for delivery, keeping only the newest message
+ * per package and collapse key, as the sender declared older ones to be obsolete by then.
+ * <p>
+ * Held messages are delivered once a short window ended, or right away when the app shows it is running, e.g. by
+ * talking to us. Apps that are still stopped at the end of the window can't receive anything, so their messages are
+ * held for another, longer window, until {@link #MAX_HOLD_MS} after they were first held. They are delivered then
+ * anyway, so nothing is held for apps that never run. Must only be used on the thread of the given handler.
+ */
+public class McsCollapseBuffer {
+    private static final String TAG = "GmsGcmCollapse";
+    public static final long HOLD_WINDOW_MS = 10000;
+    public static final long STOPPED_RETRY_MS = 60000;
+    public static final long MAX_HOLD_MS = 5 * 60000;
+    private static final int MAX_HELD = 128;
+
+    public interface Target {
+        /**
+         * @return false if the app is stopped and thus can't receive any broadcast
+         */
+        boolean isReachable(String packageName);
+
+        void deliver(DataMessageStanza message);
+
+        /**
+         * Called for a message that is replaced by a newer one with the same collapse key and thus never delivered.
+         */
+        void discard(DataMessageStanza message);
+    }
+
+    private final Handler handler;
+    private final Target target;
+    // Keyed by package name and collapse key, oldest first
+    private final LinkedHashMap<String, Held> held = new LinkedHashMap<>();
+    private final Runnable flush = this::flushAll;
+    private boolean flushScheduled;
+    private volatile int collapsedCount;
+    private volatile int agedOutCount;
+
+    private static class Held {
+        final DataMessageStanza message;
+        // Elapsed realtime the first message with this key was held, replacing it does not extend the hold
+        final long since;
+
+        Held(DataMessageStanza message, long since) {
+            this.message = message;
+            this.since = since;
+        }
+    }
+
+    public McsCollapseBuffer(Handler handler, Target target) {
+        this.handler = handler;
+        this.target = target;
+    }
+
+    public void hold(DataMessageStanza message) {
+        String key = message.category + "\n" + message.token;
+        Held replaced = held.remove(key);
+        long since = SystemClock.elapsedRealtime();
+        if (replaced != null) {
+            collapsedCount++;
+            target.discard(replaced.message);
+            since = replaced.since;
+        }
+        held.put(key, new Held(message, since));
+        if (held.size() > MAX_HELD) {
+            Iterator<Held> iterator = held.values().iterator();
+            Held eldest = iterator.next();
+            iterator.remove();
+            target.deliver(eldest.message);
+        }
+        schedule(HOLD_WINDOW_MS);
+    }
+
+    /**
+     * Delivers all held messages of the app, as it is reachable now. May be called from any thread.
+     */
+    public void flush(String packageName) {
+        handler.post(() -> {
+            Iterator<Held> iterator = held.values().iterator();
+            while (iterator.hasNext()) {
+                DataMessageStanza message = iterator.next().message;
+                if (packageName.equals(message.category)) {
+                    iterator.remove();
+                    target.deliver(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delivers everything that is held, e.g. before shutting down.
+     */
+    public void deliverAll() {
+        handler.removeCallbacks(flush);
+        flushScheduled = false;
+        for (Held entry : held.values()) {
+            target.deliver(entry.message);
+        }
+        held.clear();
+    }
+
+    private void flushAll() {
+        flushScheduled = false;
+        Map<String, Boolean> reachable = new HashMap<>();
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Held> iterator = held.values().iterator();
+        while (iterator.hasNext()) {
+            Held entry = iterator.next();
+            DataMessageStanza message = entry.message;
+            if (now - entry.since >= MAX_HOLD_MS) {
+                iterator.remove();
+                agedOutCount++;
+                target.deliver(message);
+                continue;
+            }
+            Boolean packageReachable = reachable.get(message.category);
+            if (packageReachable == null) {
+                packageReachable = target.isReachable(message.category);
+                reachable.put(message.category, packageReachable);
+            }
+            if (packageReachable) {
+                iterator.remove();
+                target.deliver(message);
+            }
+        }
+        if (!held.isEmpty()) {
+            Log.d(TAG, "Keeping " + held.size() + " messages for stopped apps");
+            schedule(STOPPED_RETRY_MS);
+        }
+    }
+
+    private void schedule(long delayMs) {
+        if (flushScheduled) return;
+        flushScheduled = true;
+        handler.postDelayed(flush, delayMs);
+    }
+
+    public int getCollapsedCount() {
+        return collapsedCount;
+    }
+
+    /**
+     * @return the number of messages delivered after being held for {@link #MAX_HOLD_MS} while the app was stopped
+     */
+    public int getAgedOutCount() {
+        return agedOutCount;
+    }
+}
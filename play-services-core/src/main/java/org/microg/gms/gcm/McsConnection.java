@@ -0,0 +1,45 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import com.squareup.wire.Message;
+
+import java.io.Closeable;
+
+/**
+ * A single connection to the MCS server.
+ * <p>
+ * Implementations report to the handler passed on construction using the {@link McsConstants} messages:
+ * {@code MSG_OUTPUT_READY} once messages can be sent, {@code MSG_INPUT} for every decoded frame,
+ * {@code MSG_OUTPUT_DONE} for every frame written and {@code MSG_INPUT_ERROR}, {@code MSG_OUTPUT_ERROR} or
+ * {@code MSG_TEARDOWN} when the connection failed.
+ */
+public interface McsConnection extends Closeable {
+    void start();
+
+    boolean isAlive();
+
+    /**
+     * Queues a message to be written. May be called from any thread.
+     */
+    void send(int tag, Message message);
+
+    /**
+     * @return the id of the last frame received, marking it as reported.
+     */
+    int getStreamId();
+
+    boolean newStreamIdAvailable();
+
+    /**
+     * Sets the time after which the connection fails with a {@link java.net.SocketTimeoutException} if nothing was
+     * received. 0 disables the deadline. May be called from any thread.
+     */
+    void setReadTimeout(int timeoutMs);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,238 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Establishes a connection by racing staggered attempts to all ports and address families of a host, similar to
+ * Happy Eyeballs (RFC 8305).
+ * <p>
+ * The first attempt that completes wins, all others are closed. The port and address family of the winner is
+ * remembered per network and tried first on the next connect.
+ */
+public class McsConnectionRacer {
+    private static final String TAG = "GmsGcmRacer";
+    private static final String PREFS_NAME = "gcm_connection_racer";
+
+    public static final int CONNECT_TIMEOUT_MS = 10000;
+    // Delay before starting the next attempt while earlier ones are still pending, as recommended by RFC 8305
+    public static final int ATTEMPT_DELAY_MS = 250;
+    private static final long DNS_CACHE_MS = 60000;
+    private static final int MAX_ADDRESSES_PER_FAMILY = 2;
+
+    private static final Map<String, CachedAddresses> dnsCache = new HashMap<>();
+
+    public interface Connector<T extends Closeable> {
+        /**
+         * Connects to the given address. Sockets have to be passed to {@link Attempt#track(Closeable)} before
+         * blocking on them, so the attempt can be aborted when another one wins.
+         */
+        T connect(InetSocketAddress address, int timeoutMs, Attempt attempt) throws IOException;
+    }
+
+    public static class Attempt {
+        private final List<Closeable> closeables = new ArrayList<>();
+        private boolean cancelled;
+
+        public synchronized void track(Closeable closeable) throws IOException {
+            if (cancelled) {
+                closeable.close();
+                throw new InterruptedIOException("Attempt cancelled");
+            }
+            closeables.add(closeable);
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            for (Closeable closeable : closeables) {
+                try {
+                    closeable.close();
+                } catch (IOException ignored) {
+                }
+            }
+            closeables.clear();
+        }
+    }
+
+    public static class Result<T> {
+        public final T connection;
+        public final InetSocketAddress address;
+
+        private Result(T connection, InetSocketAddress address) {
+            this.connection = connection;
+            this.address = address;
+        }
+    }
+
+    private static class CachedAddresses {
+        final InetAddress[] addresses;
+        final long expires;
+
+        CachedAddresses(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    private final SharedPreferences preferences;
+
+    public McsConnectionRacer(Context context) {
+        this.preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param networkKey identity of the network as of {@link McsHeartbeatLearner#getNetworkIdentity(Context, Network)}
+     * @param network    network to resolve the host on, or null to use the default network
+     */
+    public <T extends Closeable> Result<T> race(String host, int[] ports, String networkKey, Network network, Connector<T> connector) throws IOException {
+        String cacheKey = host + "@" + networkKey;
+        List<InetSocketAddress> candidates = getCandidates(resolve(host, cacheKey, network), ports, preferences.getString(networkKey, null));
+        if (candidates.isEmpty()) throw new IOException("No address for " + host);
+        ExecutorService executor = Executors.newFixedThreadPool(candidates.size(), runnable -> {
+            Thread thread = new Thread(runnable, "McsConnectionRacer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ExecutorCompletionService<Result<T>> completionService = new ExecutorCompletionService<>(executor);
+        Map<Future<Result<T>>, Attempt> attempts = new HashMap<>();
+        Result<T> winner = null;
+        IOException lastException = null;
+        try {
+            int next = 0;
+            int pending = 0;
+            long deadline = 0;
+            while (winner == null) {
+                if (next < candidates.size()) {
+                    InetSocketAddress address = candidates.get(next++);
+                    Attempt attempt = new Attempt();
+                    Log.d(TAG, "Trying " + address);
+                    attempts.put(completionService.submit(() -> new Result<>(connector.connect(address, CONNECT_TIMEOUT_MS, attempt), address)), attempt);
+                    pending++;
+                    deadline = SystemClock.elapsedRealtime() + CONNECT_TIMEOUT_MS;
+                } else if (pending == 0) {
+                    break;
+                }
+                long wait = next < candidates.size() ? ATTEMPT_DELAY_MS : deadline - SystemClock.elapsedRealtime();
+                Future<Result<T>> completed = wait > 0 ? completionService.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (completed == null) {
+                    if (next >= candidates.size()) {
+                        lastException = new SocketTimeoutException("Connection attempts timed out");
+                        break;
+                    }
+                    continue;
+                }
+                pending--;
+                try {
+                    winner = completed.get();
+                    attempts.remove(completed);
+                } catch (ExecutionException e) {
+                    Log.d(TAG, "Attempt failed: " + e.getCause());
+                    lastException = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            lastException = new InterruptedIOException("Interrupted while connecting");
+        } finally {
+            for (Attempt attempt : attempts.values()) {
+                attempt.cancel();
+            }
+            executor.shutdownNow();
+        }
+        if (winner == null) {
+            synchronized (dnsCache) {
+                dnsCache.remove(cacheKey);
+            }
+            throw lastException != null ? lastException : new IOException("No address for " + host);
+        }
+        Log.d(TAG, "Connected to " + winner.address + " on " + networkKey);
+        preferences.edit().putString(networkKey, toPreference(winner.address)).apply();
+        return winner;
+    }
+
+    private static InetAddress[] resolve(String host, String cacheKey, Network network) throws IOException {
+        synchronized (dnsCache) {
+            CachedAddresses cached = dnsCache.get(cacheKey);
+            if (cached != null && cached.expires > SystemClock.elapsedRealtime()) return cached.addresses;
+        }
+        InetAddress[] addresses = network != null ? network.getAllByName(host) : InetAddress.getAllByName(host);
+        synchronized (dnsCache) {
+            dnsCache.put(cacheKey, new CachedAddresses(addresses, SystemClock.elapsedRealtime() + DNS_CACHE_MS));
+        }
+        return addresses;
+    }
+
+    /**
+     * Orders the candidates by port, preferred port first, and alternates address families within each port,
+     * starting with the preferred family or the first family returned by the resolver.
+     */
+    private static List<InetSocketAddress> getCandidates(InetAddress[] addresses, int[] ports, String preference) {
+        int preferredPort = -1;
+        Boolean preferIpv6 = null;
+        if (preference != null) {
+            try {
+                String[] split = preference.split("/");
+                preferredPort = Integer.parseInt(split[0]);
+                preferIpv6 = "6".equals(split[1]);
+            } catch (Exception ignored) {
+            }
+        }
+        if (preferIpv6 == null) preferIpv6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+
+        List<InetAddress> ipv4 = new ArrayList<>();
+        List<InetAddress> ipv6 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            List<InetAddress> family = address instanceof Inet6Address ? ipv6 : ipv4;
+            if (family.size() < MAX_ADDRESSES_PER_FAMILY) family.add(address);
+        }
+        List<InetAddress> first = preferIpv6 ? ipv6 : ipv4;
+        List<InetAddress> second = preferIpv6 ? ipv4 : ipv6;
+        List<InetAddress> interleaved = new ArrayList<>();
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) interleaved.add(first.get(i));
+            if (i < second.size()) interleaved.add(second.get(i));
+        }
+
+        List<Integer> orderedPorts = new ArrayList<>();
+        for (int port : ports) {
+            if (port == preferredPort) orderedPorts.add(0, port);
+            else orderedPorts.add(port);
+        }
+        List<InetSocketAddress> candidates = new ArrayList<>();
+        for (int port : orderedPorts) {
+            for (InetAddress address : interleaved) {
+                candidates.add(new InetSocketAddress(address, port));
+            }
+        }
+        return candidates;
+    }
+
+    private static String toPreference(InetSocketAddress address) {
+        return address.getPort() + "/" + (address.getAddress() instanceof Inet6Address ? "6" : "4");
+    }
+}
@@ -33,15 +33,22 @@ public final class McsConstants {
     public static final int MSG_OUTPUT_ERROR = 21;
     public static final int MSG_OUTPUT_READY = 22;
     public static final int MSG_OUTPUT_DONE = 23;
+    public static final int MSG_OUTPUT_FLUSH = 24;
     public static final int MSG_TEARDOWN = 30;
     public static final int MSG_CONNECT = 40;
     public static final int MSG_HEARTBEAT = 41;
     public static final int MSG_ACK = 42;
+    public static final int MSG_SELECTIVE_ACK = 43;
+    public static final int MSG_FLUSH_STATS = 44;
+    public static final int MSG_NETWORK_AVAILABLE = 45;
+    public static final int MSG_NETWORK_LOST = 46;
 
     public static String ACTION_CONNECT = "org.microg.gms.gcm.mcs.CONNECT";
     public static String ACTION_RECONNECT = "org.microg.gms.gcm.mcs.RECONNECT";
     public static String ACTION_HEARTBEAT = "org.microg.gms.gcm.mcs.HEARTBEAT";
     public static String ACTION_SEND = "org.microg.gms.gcm.mcs.SEND";
     public static String ACTION_ACK = "org.microg.gms.gcm.mcs.ACK";
+    public static String ACTION_WAKEUP = "org.microg.gms.gcm.mcs.WAKEUP";
+    public static String ACTION_SCHEDULE_WAKEUP = "org.microg.gms.gcm.mcs.SCHEDULE_WAKEUP";
     public static String EXTRA_REASON = "org.microg.gms.gcm.mcs.REASON";
 }
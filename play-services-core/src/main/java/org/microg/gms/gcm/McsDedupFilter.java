@@ -0,0 +1,76 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Remembers the persistent ids of the most recently delivered messages, so that messages the server sends again
+ * after a reconnect are not delivered twice.
+ * <p>
+ * Holds at most {@link #CAPACITY} ids, dropping the least recently seen ones. Ids are appended to a file in the
+ * persistent process, which is rewritten once it holds twice as many records as ids.
+ */
+public class McsDedupFilter implements Closeable {
+    private static final String TAG = "GmsGcmDedup";
+    private static final String FILE_NAME = "gcm_delivered_ids";
+    public static final int CAPACITY = 512;
+
+    private final AppendLog log;
+    // Least recently seen first
+    private final LinkedHashSet<String> ids = new LinkedHashSet<>();
+    private int duplicateCount;
+
+    public McsDedupFilter(Context context) {
+        this.log = new AppendLog(new File(context.getFilesDir(), FILE_NAME), TAG);
+        if (log.exists()) log.read(this::touch);
+    }
+
+    /**
+     * Records the id of a message that is about to be delivered.
+     *
+     * @return false if a message with this id was delivered before
+     */
+    public synchronized boolean add(String persistentId) {
+        if (!touch(persistentId)) {
+            duplicateCount++;
+            return false;
+        }
+        log.append(persistentId);
+        if (log.getRecords() > CAPACITY * 2) log.rewrite(ids);
+        return true;
+    }
+
+    /**
+     * Marks the id as most recently seen, dropping the oldest id if over capacity.
+     *
+     * @return true if the id was not known
+     */
+    private boolean touch(String id) {
+        boolean known = ids.remove(id);
+        ids.add(id);
+        if (ids.size() > CAPACITY) {
+            Iterator<String> iterator = ids.iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        return !known;
+    }
+
+    public synchronized int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    @Override
+    public synchronized void close() {
+        log.close();
+    }
+}
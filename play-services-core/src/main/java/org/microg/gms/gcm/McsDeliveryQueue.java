@@ -0,0 +1,392 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import static org.microg.gms.gcm.GcmConstants.EXTRA_DELIVERED_PRIORITY;
+import static org.microg.gms.gcm.GcmConstants.EXTRA_PRIORITY;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.microg.gms.gcm.mcs.AppData;
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue that hands incoming cloud messages to a dedicated delivery thread, so that resolving receivers and
+ * sending broadcasts never delays protocol handling on the connection.
+ * <p>
+ * Messages are queued per package and delivered round-robin, so a backlog for one app does not delay the messages of
+ * all others. Each package has a token bucket that allows a burst of {@link #BUCKET_SIZE} messages, after which
+ * messages are delivered at a steady rate. High priority messages are delivered before all others and are not rate
+ * limited.
+ * <p>
+ * While the device is idle, normal priority messages can be held back with {@link #setHoldNormalPriority(boolean)} and
+ * are then delivered as one batch once the device wakes up, while high priority messages are still delivered right
+ * away.
+ * <p>
+ * Enqueuing never blocks the connection. If the queue is full, messages are kept only in the {@link McsDeliveryStore}
+ * and queued again once there is room. A wake lock is held while messages are due for delivery.
+ */
+public class McsDeliveryQueue {
+    private static final String TAG = "GmsGcmDelivery";
+    public static final int CAPACITY = 256;
+    public static final int BUCKET_SIZE = 10;
+    // One token is added to the bucket of each package per interval
+    public static final long REFILL_INTERVAL_MS = 500;
+    // The temp allowlist granted at the start of a burst expires after McsAllowlistTracker.GRANT_DURATION_MS, so long
+    // bursts are split
+    private static final long MAX_BURST_MS = 5000;
+    public static final long QUIT_TIMEOUT_MS = 5000;
+    // Renewed whenever a drain is scheduled, so it only expires if the delivery thread is stuck
+    private static final long WAKELOCK_TIMEOUT_MS = 60000;
+
+    public interface Target {
+        /**
+         * @param newBurst true for the first message of a burst of messages for its package, for which the app
+         *                 should be allowlisted
+         */
+        void deliver(DataMessageStanza message, boolean newBurst);
+    }
+
+    private static class Entry {
+        final DataMessageStanza message;
+        final long enqueued;
+
+        Entry(DataMessageStanza message, long enqueued) {
+            this.message = message;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private static class PackageQueue {
+        final ArrayDeque<Entry> high = new ArrayDeque<>();
+        final ArrayDeque<Entry> normal = new ArrayDeque<>();
+        double tokens = BUCKET_SIZE;
+        long lastRefill = SystemClock.elapsedRealtime();
+        // Start of the current burst, 0 if the queue ran empty since
+        long burstStart;
+
+        boolean isEmpty() {
+            return high.isEmpty() && normal.isEmpty();
+        }
+
+        void refill(long now) {
+            tokens = Math.min(BUCKET_SIZE, tokens + (double) (now - lastRefill) / REFILL_INTERVAL_MS);
+            lastRefill = now;
+        }
+
+        long timeUntilToken() {
+            return (long) Math.ceil((1 - tokens) * REFILL_INTERVAL_MS);
+        }
+    }
+
+    private final Target target;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final McsDeliveryStore store;
+    private final PowerManager.WakeLock wakeLock;
+    private final Runnable drain = () -> drain(false);
+
+    // All guarded by this
+    private final Map<String, PackageQueue> queues = new HashMap<>();
+    // Packages with queued messages, in the order they are served next
+    private final ArrayDeque<String> roundRobin = new ArrayDeque<>();
+    private boolean holdNormalPriority;
+    // Persistent ids of messages that did not fit into the queue, oldest first
+    private final ArrayDeque<String> spilled = new ArrayDeque<>();
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong totalLatencyMs = new AtomicLong();
+    private final AtomicLong maxLatencyMs = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong batched = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public McsDeliveryQueue(Context context, McsDeliveryStore store, Target target) {
+        this.target = target;
+        this.store = store;
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "mcs:delivery");
+        this.wakeLock.setReferenceCounted(false);
+        this.thread = new HandlerThread("McsDelivery");
+        this.thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    public static boolean isHighPriority(DataMessageStanza message) {
+        for (AppData appData : message.app_data) {
+            if (EXTRA_DELIVERED_PRIORITY.equals(appData.key) || EXTRA_PRIORITY.equals(appData.key)) {
+                return "high".equals(appData.value_);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets whether normal priority messages are held back until this is called with false again.
+     */
+    public void setHoldNormalPriority(boolean hold) {
+        synchronized (this) {
+            if (holdNormalPriority == hold) return;
+            holdNormalPriority = hold;
+        }
+        if (!hold) scheduleDrain();
+    }
+
+    /**
+     * Queues a message for delivery. Messages with a persistent id have to be in the {@link McsDeliveryStore} already.
+     */
+    public void enqueue(DataMessageStanza message) {
+        synchronized (this) {
+            if (depth.get() >= CAPACITY) {
+                if (message.persistent_id != null) {
+                    // Still in the store, it is queued again once there is room
+                    spilled.add(message.persistent_id);
+                    spilledCount.incrementAndGet();
+                } else {
+                    Log.w(TAG, "Delivery queue is full, dropping message for " + message.category);
+                    dropped.incrementAndGet();
+                }
+                return;
+            }
+            add(message, SystemClock.elapsedRealtime());
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        // Replaces a delayed drain waiting for tokens, as this message might be for another package
+        handler.removeCallbacks(drain);
+        if (handler.post(drain)) {
+            wakeLock.acquire(WAKELOCK_TIMEOUT_MS);
+        } else {
+            Log.w(TAG, "Delivery thread is gone");
+        }
+    }
+
+    // Must hold this
+    private void add(DataMessageStanza message, long enqueued) {
+        boolean highPriority = isHighPriority(message);
+        int currentDepth = depth.incrementAndGet();
+        if (currentDepth > maxDepth.get()) maxDepth.set(currentDepth);
+        Entry entry = new Entry(message, enqueued);
+        {
+            PackageQueue queue = queues.get(message.category);
+            if (queue == null) {
+                queue = new PackageQueue();
+                queues.put(message.category, queue);
+            }
+            if (queue.isEmpty()) roundRobin.add(message.category);
+            (highPriority ? queue.high : queue.normal).add(entry);
+            if (!highPriority && holdNormalPriority) batched.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queues spilled messages again while there is room. Must hold this.
+     */
+    private void unspill() {
+        while (!spilled.isEmpty() && depth.get() < CAPACITY) {
+            DataMessageStanza message = store.get(spilled.poll());
+            // Not stored anymore if it was delivered meanwhile, e.g. on shutdown
+            if (message != null) add(message, SystemClock.elapsedRealtime());
+        }
+    }
+
+    private void drain(boolean ignoreLimits) {
+        while (true) {
+            Entry entry = null;
+            boolean newBurst;
+            synchronized (this) {
+                unspill();
+                long now = SystemClock.elapsedRealtime();
+                long wait = Long.MAX_VALUE;
+                PackageQueue queue = null;
+                String packageName = null;
+                // High priority messages first, in round-robin order of their packages
+                for (String candidate : roundRobin) {
+                    PackageQueue candidateQueue = queues.get(candidate);
+                    if (!candidateQueue.high.isEmpty()) {
+                        packageName = candidate;
+                        queue = candidateQueue;
+                        queue.refill(now);
+                        queue.tokens = Math.max(0, queue.tokens - 1);
+                        entry = queue.high.poll();
+                        break;
+                    }
+                }
+                if (entry != null) {
+                    // Served last next time, so one package's high priority messages can't starve the others
+                    roundRobin.remove(packageName);
+                    roundRobin.add(packageName);
+                }
+                boolean holdNormal = holdNormalPriority && !ignoreLimits;
+                for (int i = 0; entry == null && !holdNormal && i < roundRobin.size(); i++) {
+                    String candidate = roundRobin.poll();
+                    roundRobin.add(candidate);
+                    PackageQueue candidateQueue = queues.get(candidate);
+                    candidateQueue.refill(now);
+                    if (candidateQueue.tokens >= 1 || ignoreLimits) {
+                        packageName = candidate;
+                        queue = candidateQueue;
+                        queue.tokens = Math.max(0, queue.tokens - 1);
+                        entry = queue.normal.poll();
+                    } else {
+                        wait = Math.min(wait, candidateQueue.timeUntilToken());
+                    }
+                }
+                if (entry == null) {
+                    if (wait != Long.MAX_VALUE) {
+                        rateLimited.incrementAndGet();
+                        handler.postDelayed(drain, Math.max(1, wait));
+                        // The handler uses the uptime clock, which stops while the device sleeps
+                        wakeLock.acquire(WAKELOCK_TIMEOUT_MS);
+                    } else {
+                        // Nothing queued or only messages held back while idle
+                        wakeLock.release();
+                    }
+                    pruneQueues(now);
+                    return;
+                }
+                newBurst = queue.burstStart == 0 || now - queue.burstStart > MAX_BURST_MS;
+                if (newBurst) queue.burstStart = now;
+                if (queue.isEmpty()) {
+                    roundRobin.remove(packageName);
+                    queue.burstStart = 0;
+                }
+            }
+            try {
+                target.deliver(entry.message, newBurst);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed delivering message " + entry.message.persistent_id, e);
+            } finally {
+                depth.decrementAndGet();
+                noteLatency(SystemClock.elapsedRealtime() - entry.enqueued);
+            }
+        }
+    }
+
+    /**
+     * Forgets the queues of packages that have nothing queued and whose bucket is full again, as a new queue would
+     * start the same. Must hold this.
+     */
+    private void pruneQueues(long now) {
+        Iterator<PackageQueue> iterator = queues.values().iterator();
+        while (iterator.hasNext()) {
+            PackageQueue queue = iterator.next();
+            if (!queue.isEmpty()) continue;
+            queue.refill(now);
+            if (queue.tokens >= BUCKET_SIZE) iterator.remove();
+        }
+    }
+
+    private void noteLatency(long latencyMs) {
+        delivered.incrementAndGet();
+        totalLatencyMs.addAndGet(latencyMs);
+        if (latencyMs > maxLatencyMs.get()) maxLatencyMs.set(latencyMs);
+    }
+
+    public int getDepth() {
+        return depth.get();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * @return the average time in milliseconds between a message being queued and its delivery completing
+     */
+    public long getAverageLatencyMs() {
+        long count = delivered.get();
+        return count == 0 ? 0 : totalLatencyMs.get() / count;
+    }
+
+    public long getMaxLatencyMs() {
+        return maxLatencyMs.get();
+    }
+
+    /**
+     * @return how often delivery had to wait because all packages with queued messages were rate limited
+     */
+    public long getRateLimitedCount() {
+        return rateLimited.get();
+    }
+
+    /**
+     * @return the number of messages that did not fit into the queue and were kept only in the store
+     */
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    /**
+     * @return the number of messages without persistent id that were dropped as the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of normal priority messages that were held back while the device was idle
+     */
+    public long getBatchedCount() {
+        return batched.get();
+    }
+
+    /**
+     * @return the handler of the delivery thread
+     */
+    public Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Delivers all queued messages without rate limits or holding back, runs {@code afterDrain} on the delivery
+     * thread and stops it. Waits for the delivery thread to finish, at most {@link #QUIT_TIMEOUT_MS}.
+     */
+    public void quit(Runnable afterDrain) {
+        handler.removeCallbacks(drain);
+        handler.post(() -> {
+            drain(true);
+            afterDrain.run();
+        });
+        thread.quitSafely();
+        try {
+            thread.join(QUIT_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) Log.w(TAG, "Delivery thread did not finish in time");
+        wakeLock.release();
+    }
+
+    @Override
+    public String toString() {
+        return "McsDeliveryQueue{depth=" + getDepth() + ", maxDepth=" + getMaxDepth() + ", delivered=" + getDeliveredCount() +
+                ", avgLatencyMs=" + getAverageLatencyMs() + ", maxLatencyMs=" + getMaxLatencyMs() +
+                ", rateLimited=" + getRateLimitedCount() + ", batched=" + getBatchedCount() +
+                ", spilled=" + getSpilledCount() + ", dropped=" + getDroppedCount() + "}";
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps received messages on disk until they were broadcast to their app.
+ * <p>
+ * Messages are acknowledged to the server right after they were received, but may be held back in memory for a long
+ * time, e.g. while rate limited, collapsed or batched during idle. Storing them allows delivering them after the
+ * process died in between. Only messages with a persistent id are stored, the server does not redeliver others
+ * either.
+ * <p>
+ * Every change is a single append of one line ({@code +time message} or {@code -id}), the file is rewritten with only
+ * the remaining messages once it mostly consists of removed ones, and on load. Messages stored for longer than the
+ * maximum time to live are dropped on load, and the oldest ones are dropped if there are too many.
+ */
+public class McsDeliveryStore implements Closeable {
+    private static final String TAG = "GmsGcmDeliveryStore";
+    private static final String FILE_NAME = "gcm_pending_deliveries";
+    // The server does not keep messages for longer either
+    private static final long MAX_AGE_MS = McsUpstreamQueue.MAX_TTL_SECONDS * 1000L;
+    private static final int MAX_MESSAGES = 1024;
+
+    private final AppendLog log;
+    // Persistent id to the stored message, oldest first
+    private final LinkedHashMap<String, Stored> messages = new LinkedHashMap<>();
+    private int dropped;
+
+    private static class Stored {
+        // Wall clock time the message was stored, so it is comparable after a reboot
+        final long time;
+        final String encoded;
+
+        Stored(long time, String encoded) {
+            this.time = time;
+            this.encoded = encoded;
+        }
+    }
+
+    public McsDeliveryStore(Context context) {
+        this.log = new AppendLog(new File(context.getFilesDir(), FILE_NAME), TAG);
+        if (log.exists()) {
+            log.read(this::onLine);
+            long oldest = System.currentTimeMillis() - MAX_AGE_MS;
+            Iterator<Stored> iterator = messages.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().time < oldest) {
+                    iterator.remove();
+                    dropped++;
+                }
+            }
+            if (dropped > 0) Log.w(TAG, "Dropped " + dropped + " messages stored for too long");
+            if (log.getRecords() > messages.size()) compact();
+        }
+    }
+
+    private void onLine(String line) {
+        if (line.length() < 2) return;
+        if (line.charAt(0) == '+') {
+            int separator = line.indexOf(' ');
+            if (separator < 0) return;
+            String encoded = line.substring(separator + 1);
+            DataMessageStanza message = decode(encoded);
+            if (message == null || message.persistent_id == null) return;
+            try {
+                messages.put(message.persistent_id, new Stored(Long.parseLong(line.substring(1, separator)), encoded));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid stored message time", e);
+            }
+        } else if (line.charAt(0) == '-') {
+            messages.remove(line.substring(1));
+        }
+    }
+
+    private static String toLine(Stored stored) {
+        return "+" + stored.time + " " + stored.encoded;
+    }
+
+    private static DataMessageStanza decode(String encoded) {
+        try {
+            return DataMessageStanza.ADAPTER.decode(Base64.decode(encoded, Base64.NO_WRAP));
+        } catch (Exception e) {
+            Log.w(TAG, "Failed decoding stored message", e);
+            return null;
+        }
+    }
+
+    public synchronized void add(DataMessageStanza message) {
+        if (message.persistent_id == null || messages.containsKey(message.persistent_id)) return;
+        Stored stored = new Stored(System.currentTimeMillis(), Base64.encodeToString(message.encode(), Base64.NO_WRAP));
+        messages.put(message.persistent_id, stored);
+        log.append(toLine(stored));
+        if (messages.size() > MAX_MESSAGES) {
+            // Still delivered if it is queued, but no longer after the process died
+            Iterator<String> iterator = messages.keySet().iterator();
+            String eldest = iterator.next();
+            iterator.remove();
+            dropped++;
+            Log.w(TAG, "Too many stored messages, dropping " + eldest);
+            log.append("-" + eldest);
+        }
+    }
+
+    /**
+     * Forgets a message, as it was delivered or became obsolete.
+     */
+    public synchronized void remove(DataMessageStanza message) {
+        if (message.persistent_id == null || messages.remove(message.persistent_id) == null) return;
+        log.append("-" + message.persistent_id);
+        if (log.getRecords() > 64 && log.getRecords() > messages.size() * 4) compact();
+    }
+
+    private void compact() {
+        List<String> lines = new ArrayList<>(messages.size());
+        for (Stored stored : messages.values()) {
+            lines.add(toLine(stored));
+        }
+        log.rewrite(lines);
+    }
+
+    /**
+     * @return all stored messages in the order they were received
+     */
+    public synchronized List<DataMessageStanza> getAll() {
+        List<DataMessageStanza> result = new ArrayList<>(messages.size());
+        for (Stored stored : messages.values()) {
+            DataMessageStanza message = decode(stored.encoded);
+            if (message != null) result.add(message);
+        }
+        return result;
+    }
+
+    /**
+     * @return the stored message with the given persistent id, or null if it is not stored
+     */
+    public synchronized DataMessageStanza get(String persistentId) {
+        Stored stored = messages.get(persistentId);
+        return stored == null ? null : decode(stored.encoded);
+    }
+
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    /**
+     * @return the number of messages dropped as they were stored for too long or there were too many
+     */
+    public synchronized int getDroppedCount() {
+        return dropped;
+    }
+
+    @Override
+    public synchronized void close() {
+        log.close();
+    }
+}
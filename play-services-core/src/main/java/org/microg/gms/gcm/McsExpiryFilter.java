@@ -0,0 +1,44 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+
+/**
+ * Detects cloud messages whose time to live passed before they reached us, e.g. when they were queued on the server
+ * while the device was offline. Those are not delivered, as the sender no longer expects them to arrive.
+ * <p>
+ * The expiry is computed on the server clock, using the offset between server and local clock learnt on login.
+ */
+public class McsExpiryFilter {
+    // Tolerance for the inaccuracy of the clock offset, which includes the network latency of the login response
+    private static final long GRACE_MS = 60000;
+
+    private int expiredCount;
+
+    /**
+     * Checks a received message, counting it if it expired.
+     *
+     * @param serverTimeOffsetMs difference between server clock and local clock
+     * @return the time in milliseconds since the message expired, or 0 if it did not expire or has no expiry
+     */
+    public long checkExpired(DataMessageStanza message, long serverTimeOffsetMs) {
+        // A ttl of 0 means the message is only sent while we are connected, so it is fresh
+        if (message.sent == null || message.ttl == null || message.ttl <= 0) return 0;
+        // Like the ttl, sent is in seconds
+        long expires = (message.sent + message.ttl) * 1000L + GRACE_MS;
+        long serverNow = System.currentTimeMillis() + serverTimeOffsetMs;
+        if (serverNow <= expires) return 0;
+        synchronized (this) {
+            expiredCount++;
+        }
+        return serverNow - expires + GRACE_MS;
+    }
+
+    public synchronized int getExpiredCount() {
+        return expiredCount;
+    }
+}
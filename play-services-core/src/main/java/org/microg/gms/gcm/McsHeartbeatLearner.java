@@ -0,0 +1,162 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.RouteInfo;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Learns the longest heartbeat interval that the NAT of each network allows, so heartbeats are sent as rarely as
+ * possible.
+ * <p>
+ * For every network identity, the learner keeps the longest idle time known to be safe and the shortest idle time
+ * known to break the connection, and probes in between (doubling the interval as long as no upper bound is known).
+ * Once both are close, the safe interval minus a safety margin is used. A failure at an interval that was considered
+ * safe restarts learning from the minimum interval. A connection that breaks before being idle for the interval in use
+ * says nothing about the NAT (e.g. a server restart or a handover) and is ignored.
+ */
+public class McsHeartbeatLearner {
+    private static final String TAG = "GmsGcmHeartbeatLearner";
+    private static final String PREFS_NAME = "gcm_heartbeat_learner";
+
+    public static final int MIN_INTERVAL_MS = 60 * 1000;
+    public static final int MAX_INTERVAL_MS = 28 * 60 * 1000;
+    // Learning stops once the bounds are this close
+    private static final int RESOLUTION_MS = 30 * 1000;
+    private static final float SAFETY_MARGIN = 0.1f;
+    // After this time without failure, the upper bound is dropped and longer intervals are probed again
+    private static final long REPROBE_AFTER_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static McsHeartbeatLearner instance;
+
+    private final SharedPreferences preferences;
+
+    public static synchronized McsHeartbeatLearner get(Context context) {
+        if (instance == null) instance = new McsHeartbeatLearner(context.getApplicationContext());
+        return instance;
+    }
+
+    private McsHeartbeatLearner(Context context) {
+        this.preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Builds a key that identifies the concrete network: the carrier (MCC-MNC) for mobile networks, the SSID or
+     * the gateway for Wi-Fi and other networks.
+     */
+    public static String getNetworkIdentity(Context context, Network network) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (network == null) network = cm.getActiveNetwork();
+        if (network == null) return "none";
+        NetworkCapabilities capabilities = cm.getNetworkCapabilities(network);
+        if (capabilities != null && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            TelephonyManager telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+            String operator = telephonyManager != null ? telephonyManager.getNetworkOperator() : null;
+            boolean roaming = telephonyManager != null && telephonyManager.isNetworkRoaming();
+            return "mobile:" + (TextUtils.isEmpty(operator) ? "unknown" : operator) + (roaming ? ":roaming" : "");
+        }
+        String type = capabilities != null && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) ? "wifi:" : "other:";
+        NetworkInfo info = cm.getNetworkInfo(network);
+        String extraInfo = info != null ? info.getExtraInfo() : null;
+        if (!TextUtils.isEmpty(extraInfo) && !extraInfo.contains("unknown ssid")) {
+            return type + extraInfo;
+        }
+        LinkProperties linkProperties = cm.getLinkProperties(network);
+        if (linkProperties != null) {
+            for (RouteInfo route : linkProperties.getRoutes()) {
+                if (route.isDefaultRoute() && route.getGateway() != null) {
+                    return type + route.getGateway().getHostAddress();
+                }
+            }
+            if (linkProperties.getInterfaceName() != null) return type + linkProperties.getInterfaceName();
+        }
+        return type + "unknown";
+    }
+
+    /**
+     * @return the heartbeat interval to use next on the given network
+     */
+    public synchronized int getIntervalMs(String identity) {
+        int safe = getSafe(identity);
+        int broken = getBroken(identity);
+        if (broken != 0 && System.currentTimeMillis() - preferences.getLong(identity + ".updated", 0) > REPROBE_AFTER_MS) {
+            Log.d(TAG, identity + ": no change for a long time, probing longer intervals again");
+            broken = 0;
+            store(identity, safe, broken);
+        }
+        return getIntervalMs(safe, broken);
+    }
+
+    private static int getIntervalMs(int safe, int broken) {
+        if (broken == 0) {
+            // No upper bound known yet, keep doubling
+            return Math.min(MAX_INTERVAL_MS, safe * 2);
+        }
+        if (broken - safe <= RESOLUTION_MS) {
+            return Math.max(MIN_INTERVAL_MS, (int) (safe * (1 - SAFETY_MARGIN)));
+        }
+        return (safe + broken) / 2;
+    }
+
+    /**
+     * The connection was still alive after being idle for {@code idleMs}.
+     */
+    public synchronized void noteReached(String identity, long idleMs) {
+        int safe = getSafe(identity);
+        int broken = getBroken(identity);
+        if (idleMs <= safe) return;
+        safe = (int) Math.min(MAX_INTERVAL_MS, idleMs);
+        if (broken != 0 && broken <= safe) broken = 0;
+        Log.d(TAG, identity + ": reached " + idleMs / 1000 + "s, safe " + safe / 1000 + "s, broken " + broken / 1000 + "s");
+        store(identity, safe, broken);
+    }
+
+    /**
+     * The connection broke after being idle for {@code idleMs}.
+     */
+    public synchronized void noteTimeout(String identity, long idleMs) {
+        int safe = getSafe(identity);
+        int broken = getBroken(identity);
+        if (idleMs < Math.max(MIN_INTERVAL_MS, getIntervalMs(safe, broken))) {
+            Log.d(TAG, identity + ": ignoring timeout after only " + idleMs / 1000 + "s");
+            return;
+        }
+        if (idleMs <= safe) {
+            // The network got stricter than what we learnt, start over from the minimum
+            safe = MIN_INTERVAL_MS;
+            broken = (int) Math.max(idleMs, MIN_INTERVAL_MS + RESOLUTION_MS);
+        } else if (broken == 0 || idleMs < broken) {
+            broken = (int) idleMs;
+        }
+        Log.d(TAG, identity + ": timeout after " + idleMs / 1000 + "s, safe " + safe / 1000 + "s, broken " + broken / 1000 + "s");
+        store(identity, safe, broken);
+    }
+
+    private int getSafe(String identity) {
+        return preferences.getInt(identity + ".safe", MIN_INTERVAL_MS);
+    }
+
+    private int getBroken(String identity) {
+        return preferences.getInt(identity + ".broken", 0);
+    }
+
+    private void store(String identity, int safe, int broken) {
+        preferences.edit()
+                .putInt(identity + ".safe", safe)
+                .putInt(identity + ".broken", broken)
+                .putLong(identity + ".updated", System.currentTimeMillis())
+                .apply();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Tracks whether the device is in doze (or light doze on Android 13 and later) with the screen off. Leaving doze for a
+ * maintenance window or turning on the screen ends the idle state.
+ */
+public class McsIdleMonitor extends BroadcastReceiver {
+    private static final String TAG = "GmsGcmIdle";
+
+    public interface Listener {
+        void onIdleChanged(boolean idle);
+    }
+
+    private final Context context;
+    private final PowerManager powerManager;
+    private final Listener listener;
+    private boolean idle;
+    private boolean registered;
+
+    public McsIdleMonitor(Context context, Listener listener) {
+        this.context = context;
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.listener = listener;
+    }
+
+    public synchronized void register() {
+        if (registered) return;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+        if (SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            filter.addAction(PowerManager.ACTION_DEVICE_LIGHT_IDLE_MODE_CHANGED);
+        }
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        context.registerReceiver(this, filter);
+        registered = true;
+        update();
+    }
+
+    public synchronized void unregister() {
+        if (!registered) return;
+        context.unregisterReceiver(this);
+        registered = false;
+    }
+
+    public synchronized boolean isIdle() {
+        return idle;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        update();
+    }
+
+    private void update() {
+        boolean nowIdle = powerManager.isDeviceIdleMode() ||
+                SDK_INT >= Build.VERSION_CODES.TIRAMISU && powerManager.isDeviceLightIdleMode();
+        nowIdle &= !powerManager.isInteractive();
+        synchronized (this) {
+            if (idle == nowIdle) return;
+            idle = nowIdle;
+        }
+        Log.d(TAG, nowIdle ? "Device is idle" : "Device left idle");
+        listener.onIdleChanged(nowIdle);
+    }
+}
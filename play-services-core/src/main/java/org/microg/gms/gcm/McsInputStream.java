@@ -44,17 +44,27 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+
 public class McsInputStream extends Thread implements Closeable {
     private static final String TAG = "GmsGcmMcsInput";
 
-    private final InputStream is;
+    private final BufferedSource source;
     private final Handler mainHandler;
+    // Holds the body of the frame currently being decoded, its segments are recycled after each frame
+    private final Buffer frame = new Buffer();
 
     private boolean initialized;
     private int version = -1;
     private int lastStreamIdReported = -1;
     private int streamId = 0;
 
+    private long framesRead = 0;
+    private long bytesRead = 0;
+    private long decodeNanos = 0;
+
     private volatile boolean closed = false;
 
     public McsInputStream(InputStream is, Handler mainHandler) {
@@ -62,7 +72,7 @@ public class McsInputStream extends Thread implements Closeable {
     }
 
     public McsInputStream(InputStream is, Handler mainHandler, boolean initialized) {
-        this.is = is;
+        this.source = Okio.buffer(Okio.source(is));
         this.mainHandler = mainHandler;
         this.initialized = initialized;
         setName("McsInputStream");
@@ -87,8 +97,9 @@ public class McsInputStream extends Thread implements Closeable {
                 mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_INPUT_ERROR, e));
             }
         }
+        Log.d(TAG, "Read " + framesRead + " frames (" + bytesRead + " bytes), " + getFramesPerSecond() + " frames/s decode rate");
         try {
-            is.close();
+            source.close();
         } catch (IOException ignored) {
         }
     }
@@ -110,6 +121,22 @@ public class McsInputStream extends Thread implements Closeable {
         return lastStreamIdReported != streamId;
     }
 
+    public long getFramesRead() {
+        return framesRead;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the number of frames decoded per second of time spent decoding, not including time spent waiting for
+     * the network.
+     */
+    public long getFramesPerSecond() {
+        return decodeNanos == 0 ? 0 : framesRead * 1000000000L / decodeNanos;
+    }
+
     public int getVersion() {
         ensureVersionRead();
         return version;
@@ -118,7 +145,7 @@ public class McsInputStream extends Thread implements Closeable {
     private synchronized void ensureVersionRead() {
         if (!initialized) {
             try {
-                version = is.read();
+                version = source.readByte() & 0xFF;
                 Log.d(TAG, "Reading from MCS version: " + version);
                 initialized = true;
             } catch (IOException e) {
@@ -129,25 +156,35 @@ public class McsInputStream extends Thread implements Closeable {
 
     public synchronized android.os.Message read() throws IOException {
         ensureVersionRead();
-        int mcsTag = is.read();
+        if (source.exhausted()) {
+            Log.w(TAG, "End of stream reached");
+            return null;
+        }
+        int mcsTag = source.readByte() & 0xFF;
         int mcsSize = readVarint();
-        if (mcsTag < 0 || mcsSize < 0) {
+        if (mcsSize < 0) {
             Log.w(TAG, "mcsTag: " + mcsTag + " mcsSize: " + mcsSize);
             return null;
         }
-        byte[] bytes = new byte[mcsSize];
-        int len = 0, read = 0;
-        while (len < mcsSize && read >= 0) {
-            len += (read = is.read(bytes, len, mcsSize - len)) < 0 ? 0 : read;
+        source.readFully(frame, mcsSize);
+        long start = System.nanoTime();
+        Message message;
+        try {
+            message = decode(mcsTag, frame);
+        } finally {
+            // Drop whatever the decoder did not consume, returning the segments to the pool
+            frame.clear();
         }
-        Message message = read(mcsTag, bytes);
         if (message == null) return null;
+        framesRead++;
+        bytesRead += mcsSize;
+        decodeNanos += System.nanoTime() - start;
         Log.d(TAG, "Incoming message: " + message);
         streamId++;
         return mainHandler.obtainMessage(MSG_INPUT, mcsTag, streamId, message);
     }
 
-    private static Message read(int mcsTag, byte[] bytes) throws IOException {
+    static Message decode(int mcsTag, BufferedSource bytes) throws IOException {
         try {
             switch (mcsTag) {
                 case MCS_HEARTBEAT_PING_TAG:
@@ -175,11 +212,12 @@ public class McsInputStream extends Thread implements Closeable {
     }
 
     private int readVarint() throws IOException {
-        int res = 0, s = -7, read;
+        int res = 0, s = 0, read;
         do {
-            res |= ((read = is.read()) & 0x7F) << (s += 7);
-        } while (read >= 0 && (read & 0x80) == 0x80 && s < 32);
-        if (read < 0) return -1;
+            read = source.readByte();
+            res |= (read & 0x7F) << s;
+            s += 7;
+        } while ((read & 0x80) == 0x80 && s < 35);
         return res;
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects per-app message counters in memory and writes them to the {@link GcmDatabase} in batches, instead of
+ * running one database transaction per message.
+ */
+public class McsMessageStats {
+    private static final String TAG = "GmsGcmMessageStats";
+    public static final long FLUSH_DELAY_MS = 60000;
+
+    public static class Delta {
+        public final String packageName;
+        public final long count;
+        public final long bytes;
+        public final long lastTimestamp;
+
+        private Delta(String packageName, long count, long bytes, long lastTimestamp) {
+            this.packageName = packageName;
+            this.count = count;
+            this.bytes = bytes;
+            this.lastTimestamp = lastTimestamp;
+        }
+    }
+
+    private static class Counter {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong lastTimestamp = new AtomicLong();
+    }
+
+    private final GcmDatabase database;
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    public McsMessageStats(GcmDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * @return true if this is the first message since the last flush, so a flush should be scheduled
+     */
+    public boolean noteAppMessage(String packageName, int numBytes) {
+        Counter counter = counters.get(packageName);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(packageName, newCounter);
+            if (counter == null) counter = newCounter;
+        }
+        counter.count.incrementAndGet();
+        counter.bytes.addAndGet(numBytes);
+        counter.lastTimestamp.set(System.currentTimeMillis());
+        return dirty.compareAndSet(false, true);
+    }
+
+    /**
+     * Writes all pending counters to the database in a single transaction.
+     *
+     * @return false if writing failed and the counters are kept, so another flush has to be scheduled
+     */
+    public synchronized boolean flush() {
+        if (!dirty.getAndSet(false)) return true;
+        List<Delta> deltas = new ArrayList<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            long count = counter.count.getAndSet(0);
+            long bytes = counter.bytes.getAndSet(0);
+            if (count == 0 && bytes == 0) continue;
+            deltas.add(new Delta(entry.getKey(), count, bytes, counter.lastTimestamp.get()));
+        }
+        if (deltas.isEmpty()) return true;
+        try {
+            database.noteAppMessages(deltas);
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed writing message stats, keeping them for the next flush", e);
+            for (Delta delta : deltas) {
+                Counter counter = counters.get(delta.packageName);
+                if (counter == null) continue;
+                counter.count.addAndGet(delta.count);
+                counter.bytes.addAndGet(delta.bytes);
+            }
+            dirty.set(true);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+import static org.microg.gms.gcm.McsConstants.MCS_VERSION_CODE;
+import static org.microg.gms.gcm.McsConstants.MSG_INPUT;
+import static org.microg.gms.gcm.McsConstants.MSG_INPUT_ERROR;
+import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_DONE;
+import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_READY;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.squareup.wire.Message;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+import okio.Buffer;
+
+/**
+ * Connection that runs the socket, TLS and the frame codec on a single selector thread, using an {@link SSLEngine}
+ * on top of a non-blocking {@link SocketChannel}.
+ * <p>
+ * This replaces the separate reader and writer threads of {@link McsStreamConnection}. Incoming frames are dispatched
+ * on the selector thread, the same way {@link McsInputStream} dispatches them on its own thread.
+ */
+public class McsNioConnection extends Thread implements McsConnection {
+    private static final String TAG = "GmsGcmMcsNio";
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Handler mainHandler;
+    private final Selector selector;
+    private final McsTlsContext tlsContext;
+
+    // MSG_OUTPUT_DONE messages for frames that are queued, but not yet encoded
+    private final Queue<android.os.Message> outgoing = new ConcurrentLinkedQueue<>();
+    // MSG_OUTPUT_DONE messages for frames that are encoded, but not yet written to the socket
+    private final List<android.os.Message> pendingDone = new ArrayList<>();
+
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private final ByteBuffer appOut;
+    private final Buffer plainIn = new Buffer();
+    private final Buffer plainOut = new Buffer();
+    private final Buffer frame = new Buffer();
+    private final Buffer scratch = new Buffer();
+
+    private boolean ready;
+    private boolean versionRead;
+    private boolean versionWritten;
+    private int lastStreamIdReported = -1;
+    private int streamId = 0;
+
+    private volatile int readTimeoutMs = 0;
+    private long lastReadRealtime;
+
+    private volatile boolean closed = false;
+
+    public McsNioConnection(SocketChannel channel, SSLEngine engine, Handler mainHandler, McsTlsContext tlsContext) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.mainHandler = mainHandler;
+        this.tlsContext = tlsContext;
+        this.selector = Selector.open();
+        int packetBufferSize = engine.getSession().getPacketBufferSize();
+        int applicationBufferSize = engine.getSession().getApplicationBufferSize();
+        netIn = ByteBuffer.allocate(packetBufferSize);
+        netOut = ByteBuffer.allocate(packetBufferSize);
+        appIn = ByteBuffer.allocate(applicationBufferSize);
+        appOut = ByteBuffer.allocate(applicationBufferSize);
+        appOut.flip();
+        setName("McsNioConnection");
+    }
+
+    @Override
+    public void run() {
+        try {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            long handshakeStart = SystemClock.elapsedRealtime();
+            long handshakeStartTime = System.currentTimeMillis();
+            engine.beginHandshake();
+            lastReadRealtime = SystemClock.elapsedRealtime();
+            while (!closed) {
+                processEngine();
+                if (!ready && engine.getHandshakeStatus() == NOT_HANDSHAKING) {
+                    ready = true;
+                    tlsContext.noteHandshake(engine.getSession(), handshakeStartTime, SystemClock.elapsedRealtime() - handshakeStart);
+                    mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_OUTPUT_READY));
+                }
+                boolean flushed;
+                if (ready) {
+                    encodeOutgoing();
+                    flushed = writeApplicationData();
+                    if (flushed) reportDone();
+                } else {
+                    flushed = flushNet();
+                }
+                if (closed) break;
+                key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                int timeoutMs = readTimeoutMs;
+                selector.select(timeoutMs > 0 ? Math.max(1, lastReadRealtime + timeoutMs - SystemClock.elapsedRealtime()) : 0);
+                selector.selectedKeys().clear();
+                int read = channel.read(netIn);
+                if (read < 0) {
+                    throw new EOFException("End of stream reached");
+                } else if (read > 0) {
+                    lastReadRealtime = SystemClock.elapsedRealtime();
+                } else if (timeoutMs > 0 && SystemClock.elapsedRealtime() - lastReadRealtime >= timeoutMs) {
+                    throw new SocketTimeoutException("Nothing received for " + timeoutMs / 1000 + "s");
+                }
+            }
+        } catch (Exception e) {
+            if (closed) {
+                Log.d(TAG, "We were closed already. Ignoring " + e);
+            } else {
+                mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_INPUT_ERROR, e));
+            }
+        }
+        closed = true;
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void send(int tag, Message message) {
+        if (closed) return;
+        outgoing.add(mainHandler.obtainMessage(MSG_OUTPUT_DONE, tag, 0, message));
+        selector.wakeup();
+    }
+
+    @Override
+    public int getStreamId() {
+        lastStreamIdReported = streamId;
+        return streamId;
+    }
+
+    @Override
+    public boolean newStreamIdAvailable() {
+        return lastStreamIdReported != streamId;
+    }
+
+    @Override
+    public void setReadTimeout(int timeoutMs) {
+        if (readTimeoutMs == timeoutMs) return;
+        readTimeoutMs = timeoutMs;
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs handshake steps and decrypts received records for as long as this makes progress, then dispatches all
+     * complete frames.
+     */
+    private void processEngine() throws IOException {
+        boolean progress = true;
+        while (progress && !closed) {
+            progress = false;
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    progress = true;
+                    break;
+                case NEED_WRAP:
+                    progress = wrap(EMPTY);
+                    break;
+            }
+            progress |= unwrap();
+        }
+        readFrames();
+    }
+
+    /**
+     * @return true if the engine made progress, false if it is blocked on writing to the socket
+     */
+    private boolean wrap(ByteBuffer src) throws IOException {
+        SSLEngineResult result = engine.wrap(src, netOut);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                return flushNet();
+            case CLOSED:
+                throw new EOFException("TLS session closed");
+            default:
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    /**
+     * @return true if the engine made progress, false if it needs more data from the socket
+     */
+    private boolean unwrap() throws IOException {
+        if (netIn.position() == 0) return false;
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        appIn.flip();
+        plainIn.write(appIn);
+        appIn.clear();
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                appIn = ByteBuffer.allocate(Math.max(appIn.capacity() * 2, engine.getSession().getApplicationBufferSize()));
+                return true;
+            case BUFFER_UNDERFLOW:
+                if (!netIn.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(netIn.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                    netIn.flip();
+                    larger.put(netIn);
+                    netIn = larger;
+                }
+                return false;
+            case CLOSED:
+                throw new EOFException("TLS session closed");
+            default:
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    private void readFrames() throws IOException {
+        while (!closed) {
+            if (!versionRead) {
+                if (plainIn.size() < 1) return;
+                Log.d(TAG, "Reading from MCS version: " + (plainIn.readByte() & 0xFF));
+                versionRead = true;
+            }
+            long available = plainIn.size();
+            if (available < 2) return;
+            int mcsTag = plainIn.getByte(0) & 0xFF;
+            int mcsSize = 0, s = 0;
+            long pos = 1;
+            byte read;
+            do {
+                if (pos >= available) return;
+                read = plainIn.getByte(pos++);
+                mcsSize |= (read & 0x7F) << s;
+                s += 7;
+            } while ((read & 0x80) == 0x80 && s < 35);
+            if (mcsSize < 0) {
+                throw new ProtocolException("mcsTag: " + mcsTag + " mcsSize: " + mcsSize);
+            }
+            if (available - pos < mcsSize) return;
+            plainIn.skip(pos);
+            plainIn.read(frame, mcsSize);
+            Message message;
+            try {
+                message = McsInputStream.decode(mcsTag, frame);
+            } finally {
+                frame.clear();
+            }
+            if (message == null) {
+                throw new ProtocolException("Could not decode message with tag " + mcsTag);
+            }
+            Log.d(TAG, "Incoming message: " + message);
+            streamId++;
+            mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_INPUT, mcsTag, streamId, message));
+        }
+    }
+
+    private void encodeOutgoing() throws IOException {
+        android.os.Message done;
+        while ((done = outgoing.poll()) != null) {
+            if (!versionWritten) {
+                Log.d(TAG, "Write MCS version code: " + MCS_VERSION_CODE);
+                plainOut.writeByte(MCS_VERSION_CODE);
+                versionWritten = true;
+            }
+            Log.d(TAG, "Outgoing message: " + done.obj);
+            McsOutputStream.writeFrame(plainOut, scratch, done.arg1, (Message) done.obj);
+            pendingDone.add(done);
+        }
+    }
+
+    /**
+     * @return true if all encoded frames have been written to the socket
+     */
+    private boolean writeApplicationData() throws IOException {
+        while (appOut.hasRemaining() || plainOut.size() > 0) {
+            if (!appOut.hasRemaining()) {
+                appOut.clear();
+                while (appOut.hasRemaining() && plainOut.size() > 0) {
+                    plainOut.read(appOut);
+                }
+                appOut.flip();
+            }
+            if (!wrap(appOut) && appOut.hasRemaining()) return false;
+        }
+        return flushNet();
+    }
+
+    /**
+     * @return true if all encrypted data has been written to the socket
+     */
+    private boolean flushNet() throws IOException {
+        if (netOut.position() == 0) return true;
+        netOut.flip();
+        try {
+            channel.write(netOut);
+            return !netOut.hasRemaining();
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    private void reportDone() {
+        for (android.os.Message done : pendingDone) {
+            mainHandler.dispatchMessage(done);
+        }
+        pendingDone.clear();
+    }
+}
@@ -20,6 +20,7 @@ import static org.microg.gms.gcm.McsConstants.MCS_VERSION_CODE;
 import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT;
 import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_DONE;
 import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_ERROR;
+import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_FLUSH;
 import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_READY;
 import static org.microg.gms.gcm.McsConstants.MSG_TEARDOWN;
 
@@ -32,6 +33,10 @@ import com.squareup.wire.Message;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.Buffer;
 
 public class McsOutputStream extends Thread implements Handler.Callback, Closeable {
     private static final String TAG = "GmsGcmMcsOutput";
@@ -42,6 +47,12 @@ public class McsOutputStream extends Thread implements Handler.Callback, Closeab
     private final Handler mainHandler;
     private Handler myHandler;
 
+    // Frames encoded since the last flush, written to the socket as a single batch
+    private final Buffer pending = new Buffer();
+    private final Buffer scratch = new Buffer();
+    private final List<android.os.Message> pendingDone = new ArrayList<>();
+    private boolean flushScheduled;
+
     private volatile boolean closed = false;
 
     public McsOutputStream(OutputStream os, Handler mainHandler) {
@@ -69,14 +80,29 @@ public class McsOutputStream extends Thread implements Handler.Callback, Closeab
             case MSG_OUTPUT:
                 try {
                     Log.d(TAG, "Outgoing message: " + msg.obj);
-                    writeInternal((Message) msg.obj, msg.arg1);
-                    mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_OUTPUT_DONE, msg.arg1, msg.arg2, msg.obj));
+                    encodeInternal((Message) msg.obj, msg.arg1);
+                    pendingDone.add(mainHandler.obtainMessage(MSG_OUTPUT_DONE, msg.arg1, msg.arg2, msg.obj));
                 } catch (IOException e) {
-                    if (closed) {
-                        Log.d(TAG, "We were closed already. Ignoring IOException");
-                    } else {
-                        mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_OUTPUT_ERROR, e));
+                    handleError(e);
+                }
+                if (!flushScheduled) {
+                    // Queued behind every MSG_OUTPUT that is already pending, so they all end up in one write
+                    flushScheduled = true;
+                    myHandler.sendEmptyMessage(MSG_OUTPUT_FLUSH);
+                }
+                return true;
+            case MSG_OUTPUT_FLUSH:
+                flushScheduled = false;
+                try {
+                    flushInternal();
+                    for (android.os.Message done : pendingDone) {
+                        mainHandler.dispatchMessage(done);
                     }
+                } catch (IOException e) {
+                    handleError(e);
+                } finally {
+                    pendingDone.clear();
+                    pending.clear();
                 }
                 return true;
             case MSG_TEARDOWN:
@@ -97,32 +123,59 @@ public class McsOutputStream extends Thread implements Handler.Callback, Closeab
     public void close() {
         if (!closed) {
             closed = true;
-            myHandler.getLooper().quit();
+            if (myHandler != null) myHandler.getLooper().quit();
             interrupt();
         }
     }
 
-    private synchronized void writeInternal(Message message, int tag) throws IOException {
+    private void handleError(IOException e) {
+        if (closed) {
+            Log.d(TAG, "We were closed already. Ignoring IOException");
+        } else {
+            mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_OUTPUT_ERROR, e));
+        }
+    }
+
+    private synchronized void encodeInternal(Message message, int tag) throws IOException {
         if (!initialized) {
             int version = MCS_VERSION_CODE;
             Log.d(TAG, "Write MCS version code: " + version);
-            os.write(version);
+            pending.writeByte(version);
             initialized = true;
         }
-        os.write(tag);
-        byte[] bytes = message.encode();
-        writeVarint(os, bytes.length);
-        os.write(bytes);
+        writeFrame(pending, scratch, tag, message);
+    }
+
+    /**
+     * Appends a single MCS frame (tag, length and body) to {@code sink}, using {@code scratch} to encode the body.
+     */
+    static void writeFrame(Buffer sink, Buffer scratch, int tag, Message message) throws IOException {
+        try {
+            message.encode(scratch);
+            long size = scratch.size();
+            sink.writeByte(tag);
+            writeVarint(sink, (int) size);
+            sink.write(scratch, size);
+        } finally {
+            // A failed encode must not leave a partial body in front of the next frame
+            scratch.clear();
+        }
+    }
+
+    private synchronized void flushInternal() throws IOException {
+        if (pending.size() == 0) return;
+        // Writes the buffer segments directly and returns them to the segment pool
+        pending.writeTo(os);
         os.flush();
     }
 
-    private void writeVarint(OutputStream os, int value) throws IOException {
+    private static void writeVarint(Buffer buffer, int value) {
         while (true) {
             if ((value & ~0x7FL) == 0) {
-                os.write(value);
+                buffer.writeByte(value);
                 return;
             } else {
-                os.write((value & 0x7F) | 0x80);
+                buffer.writeByte((value & 0x7F) | 0x80);
                 value >>>= 7;
             }
         }
@@ -0,0 +1,170 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import static org.microg.gms.gcm.GcmConstants.ACTION_C2DM_RECEIVE;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.content.pm.ResolveInfo;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the result of resolving the receivers of cloud messages per package, so repeated deliveries to the same app
+ * don't need any calls to the package manager.
+ * <p>
+ * Entries are dropped when packages are installed, updated, changed or removed, and when the {@link GcmDatabase}
+ * reports a change of the app (see {@link GcmDatabase.AppChangedListener}).
+ */
+public class McsReceiverCache extends BroadcastReceiver implements GcmDatabase.AppChangedListener {
+    private static final String TAG = "GmsGcmReceiverCache";
+
+    public static class Target {
+        public final String packageName;
+        public final int uid;
+        // Name of the C2D_MESSAGE permission defined by the app, null if it does not define one
+        public final String receiverPermission;
+        // Receivers in the app itself
+        public final List<ComponentName> ownReceivers;
+        // Receivers in other packages that are only allowed to receive with the C2D_MESSAGE permission
+        public final List<ComponentName> permissionReceivers;
+        public final boolean wakeForDelivery;
+
+        private Target(String packageName, int uid, String receiverPermission, List<ComponentName> ownReceivers, List<ComponentName> permissionReceivers, boolean wakeForDelivery) {
+            this.packageName = packageName;
+            this.uid = uid;
+            this.receiverPermission = receiverPermission;
+            this.ownReceivers = ownReceivers;
+            this.permissionReceivers = permissionReceivers;
+            this.wakeForDelivery = wakeForDelivery;
+        }
+    }
+
+    private final Context context;
+    private final GcmDatabase database;
+    private final ConcurrentHashMap<String, Target> targets = new ConcurrentHashMap<>();
+    // Incremented on every invalidation, so that a concurrent lookup does not store outdated results
+    private volatile int generation;
+    private boolean registered;
+
+    public McsReceiverCache(Context context, GcmDatabase database) {
+        this.context = context;
+        this.database = database;
+    }
+
+    public Target get(String packageName) {
+        Target target = targets.get(packageName);
+        if (target != null) return target;
+        int startGeneration = generation;
+        target = resolve(packageName);
+        if (startGeneration == generation) targets.put(packageName, target);
+        return target;
+    }
+
+    private Target resolve(String packageName) {
+        PackageManager packageManager = context.getPackageManager();
+        GcmDatabase.App app = database.getApp(packageName);
+        // Apps without a row yet get one with the default of the schema once their message stats are written
+        boolean wakeForDelivery = app == null || app.wakeForDelivery;
+
+        int uid = -1;
+        try {
+            uid = packageManager.getApplicationInfo(packageName, 0).uid;
+        } catch (Exception ignored) {
+            // Keep -1, package not installed
+        }
+
+        String receiverPermission = null;
+        try {
+            String name = packageName + ".permission.C2D_MESSAGE";
+            PermissionInfo info = packageManager.getPermissionInfo(name, 0);
+            if (info.packageName.equals(packageName)) {
+                receiverPermission = name;
+            }
+        } catch (Exception ignored) {
+            // Keep null, no valid permission found
+        }
+
+        if (receiverPermission == null) {
+            return new Target(packageName, uid, null, Collections.emptyList(), Collections.emptyList(), wakeForDelivery);
+        }
+
+        // Resolve including stopped packages, whether stopped apps receive the message is decided by the flags of
+        // the delivered intent.
+        Intent intent = new Intent(ACTION_C2DM_RECEIVE);
+        intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
+        List<ComponentName> ownReceivers = new ArrayList<>();
+        List<ComponentName> permissionReceivers = new ArrayList<>();
+        List<ResolveInfo> infos = packageManager.queryBroadcastReceivers(intent, PackageManager.GET_RESOLVED_FILTER);
+        if (infos != null) {
+            for (ResolveInfo resolveInfo : infos) {
+                ComponentName component = new ComponentName(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name);
+                if (resolveInfo.activityInfo.packageName.equals(packageName)) {
+                    ownReceivers.add(component);
+                } else if (resolveInfo.filter != null && resolveInfo.filter.hasCategory(packageName)) {
+                    permissionReceivers.add(component);
+                }
+            }
+        }
+        return new Target(packageName, uid, receiverPermission, ownReceivers, permissionReceivers, wakeForDelivery);
+    }
+
+    public void invalidate(String packageName) {
+        generation++;
+        targets.remove(packageName);
+    }
+
+    public void invalidateAll() {
+        generation++;
+        targets.clear();
+    }
+
+    public synchronized void register() {
+        if (registered) return;
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(this, packageFilter);
+        database.addAppChangedListener(this);
+        registered = true;
+    }
+
+    public synchronized void unregister() {
+        if (!registered) return;
+        context.unregisterReceiver(this);
+        database.removeAppChangedListener(this);
+        registered = false;
+    }
+
+    @Override
+    public void onAppChanged(String packageName) {
+        if (packageName != null) {
+            invalidate(packageName);
+        } else {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        // A package change may add or remove receivers for other packages as well
+        Log.d(TAG, "Invalidating receiver cache: " + intent.getAction());
+        invalidateAll();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Follows the default network with a {@link ConnectivityManager.NetworkCallback} and tells the service when it should
+ * (re)connect, instead of relying on the deprecated connectivity broadcast.
+ * <p>
+ * Changes are debounced, so a flapping network only causes a single reconnect once it settled. Delays between
+ * failed reconnect attempts use exponential backoff with decorrelated jitter, tracked separately per network.
+ */
+public class McsReconnectScheduler extends ConnectivityManager.NetworkCallback {
+    private static final String TAG = "GmsGcmReconnect";
+    public static final long DEBOUNCE_MS = 2000;
+    public static final long BASE_DELAY_MS = 5000;
+    public static final long MAX_DELAY_MS = 600000;
+
+    private static final Map<String, Long> delays = new HashMap<>();
+    private static final Random random = new Random();
+
+    public interface Listener {
+        /**
+         * Called on the handler thread once a validated default network has been stable for {@link #DEBOUNCE_MS}.
+         */
+        void onNetworkAvailable(Network network);
+
+        /**
+         * Called on the handler thread as soon as a network is lost.
+         */
+        void onNetworkLost(Network network);
+    }
+
+    private final Context context;
+    private final ConnectivityManager connectivityManager;
+    private final Handler handler;
+    private final Listener listener;
+    private Network pendingNetwork;
+    private Network currentNetwork;
+    private boolean registered;
+
+    private final Runnable notifyAvailable = this::notifyAvailable;
+
+    public McsReconnectScheduler(Context context, Handler handler, Listener listener) {
+        this.context = context;
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    public synchronized void register() {
+        if (registered) return;
+        if (SDK_INT >= Build.VERSION_CODES.N) {
+            connectivityManager.registerDefaultNetworkCallback(this);
+        } else {
+            connectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build(), this);
+        }
+        registered = true;
+    }
+
+    public synchronized void unregister() {
+        if (!registered) return;
+        connectivityManager.unregisterNetworkCallback(this);
+        handler.removeCallbacks(notifyAvailable);
+        registered = false;
+    }
+
+    /**
+     * @return the validated default network, or null if there is none
+     */
+    public synchronized Network getCurrentNetwork() {
+        return currentNetwork;
+    }
+
+    @Override
+    public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+        if (!networkCapabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) return;
+        if (SDK_INT < Build.VERSION_CODES.N && !network.equals(connectivityManager.getActiveNetwork())) return;
+        synchronized (this) {
+            if (network.equals(currentNetwork) || network.equals(pendingNetwork)) return;
+            Log.d(TAG, "Network " + network + " validated, waiting for it to settle");
+            pendingNetwork = network;
+        }
+        handler.removeCallbacks(notifyAvailable);
+        handler.postDelayed(notifyAvailable, DEBOUNCE_MS);
+    }
+
+    @Override
+    public void onLost(Network network) {
+        synchronized (this) {
+            if (network.equals(pendingNetwork)) {
+                pendingNetwork = null;
+                handler.removeCallbacks(notifyAvailable);
+            }
+            if (!network.equals(currentNetwork)) return;
+            currentNetwork = null;
+        }
+        Log.d(TAG, "Network " + network + " lost");
+        handler.post(() -> listener.onNetworkLost(network));
+    }
+
+    private void notifyAvailable() {
+        Network network;
+        synchronized (this) {
+            network = pendingNetwork;
+            pendingNetwork = null;
+            if (network == null) return;
+            currentNetwork = network;
+        }
+        resetDelay(McsHeartbeatLearner.getNetworkIdentity(context, network));
+        listener.onNetworkAvailable(network);
+    }
+
+    /**
+     * @param networkKey identity of the network as of {@link McsHeartbeatLearner#getNetworkIdentity(Context, Network)}
+     * @return the delay before the next reconnect attempt on the given network
+     */
+    public static synchronized long nextDelay(String networkKey) {
+        Long previous = delays.get(networkKey);
+        long delay;
+        if (previous == null) {
+            delay = BASE_DELAY_MS;
+        } else {
+            // Decorrelated jitter: random between the base delay and three times the previous delay
+            long upper = Math.min(MAX_DELAY_MS, previous * 3);
+            delay = BASE_DELAY_MS + (long) (random.nextDouble() * (upper - BASE_DELAY_MS));
+        }
+        delays.put(networkKey, delay);
+        return delay;
+    }
+
+    public static synchronized void resetDelay(String networkKey) {
+        delays.remove(networkKey);
+    }
+}
@@ -16,33 +16,34 @@
 
 package org.microg.gms.gcm;
 
-import static android.app.AlarmManager.ELAPSED_REALTIME_WAKEUP;
 import static android.os.Build.VERSION.SDK_INT;
 import static org.microg.gms.common.PackageUtils.warnIfNotPersistentProcess;
 import static org.microg.gms.gcm.GcmConstants.*;
 import static org.microg.gms.gcm.McsConstants.*;
 
 import android.annotation.SuppressLint;
-import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PermissionInfo;
-import android.content.pm.ResolveInfo;
 import android.net.ConnectivityManager;
+import android.net.Network;
 import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.os.UserHandle;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -60,30 +61,37 @@ import org.microg.gms.gcm.mcs.AppData;
 import org.microg.gms.gcm.mcs.DataMessageStanza;
 import org.microg.gms.gcm.mcs.Extension;
 import org.microg.gms.gcm.mcs.HeartbeatAck;
+import org.microg.gms.gcm.mcs.HeartbeatConfig;
 import org.microg.gms.gcm.mcs.HeartbeatPing;
+import org.microg.gms.gcm.mcs.HeartbeatStat;
 import org.microg.gms.gcm.mcs.IqStanza;
 import org.microg.gms.gcm.mcs.LoginRequest;
 import org.microg.gms.gcm.mcs.LoginResponse;
+import org.microg.gms.gcm.mcs.SelectiveAck;
 import org.microg.gms.gcm.mcs.Setting;
-import org.microg.mgms.settings.SettingsProvider;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
 
 import okio.ByteString;
 
 @SuppressLint("NonConstantResourceId")
 @ForegroundServiceInfo(value = "Cloud messaging", res = R.string.service_name_mcs)
-public class McsService extends Service implements Handler.Callback {
+public class McsService extends Service implements Handler.Callback, McsReconnectScheduler.Listener {
     private static final String TAG = "GmsGcmMcsSvc";
 
     public static final String SELF_CATEGORY = "com.google.android.gsf.gtalkservice";
@@ -99,32 +107,75 @@ public class McsService extends Service implements Handler.Callback {
     private static final int WAKELOCK_TIMEOUT = 5000;
     // On bad mobile network a ping can take >60s, so we wait for an ACK for 90s
     private static final int HEARTBEAT_ACK_AFTER_PING_TIMEOUT_MS = 90000;
+    // TCP keepalive options from linux/tcp.h, not available in OsConstants
+    private static final int TCP_KEEPIDLE = 4;
+    private static final int TCP_KEEPINTVL = 5;
+    private static final int TCP_KEEPCNT = 6;
+    private static final int KEEPALIVE_INTERVAL_SECONDS = 30;
+    private static final int KEEPALIVE_COUNT = 3;
+    // Received messages are acknowledged in batches, at the latest after this delay
+    private static final int SELECTIVE_ACK_DELAY_MS = 5000;
+    // Heartbeats may be sent this much earlier than due, at least, so they can share a wakeup with other alarms
+    private static final int HEARTBEAT_MIN_TOLERANCE_MS = 10000;
+    // A reconnect may be delayed by at most this to share a wakeup with other alarms
+    private static final int RECONNECT_TOLERANCE_MS = 5000;
 
     private static long lastHeartbeatPingElapsedRealtime = -1;
     private static long lastHeartbeatAckElapsedRealtime = -1;
     private static long lastIncomingNetworkRealtime = 0;
     private static long startTimestamp = 0;
     public static String activeNetworkPref = null;
+    // Identity of the concrete network used for learning the heartbeat interval
+    private static String activeNetworkIdentity = null;
     private boolean wasTornDown = false;
-    private final AtomicInteger nextMessageId = new AtomicInteger(0x1000000);
-
-    private static Socket sslSocket;
-    private static McsInputStream inputStream;
-    private static McsOutputStream outputStream;
-
-    private PendingIntent heartbeatIntent;
+    // Queued upstream messages survive the process, so ids of a new process must not repeat those of earlier ones
+    private final String messageIdPrefix = Long.toHexString(System.currentTimeMillis()) + "-";
+    private final AtomicInteger messageIdCounter = new AtomicInteger(0x1000000);
+
+    private static McsConnection connection;
+    // Network the current connection is bound to
+    private static Network connectedNetwork;
+    private static InetSocketAddress connectedAddress;
+    // Heartbeat interval requested by the server for the current connection, 0 if the server did not request one
+    private static int serverHeartbeatMs = 0;
+    // Whether the server wants to receive heartbeat stats, assumed until it tells otherwise
+    private static boolean uploadHeartbeatStat = true;
+    // Outcome of the last heartbeat interval, reported to the server with the next login
+    private static HeartbeatStat lastHeartbeatStat;
+    // Difference between the server clock and the local clock, as of the last login
+    private static long serverTimeOffsetMs = 0;
+    // Number of frames written on the current connection, the server acknowledges them by this id
+    private volatile int lastStreamIdSent = 0;
+
+    private McsWakeupScheduler wakeupScheduler;
 
     private static HandlerThread handlerThread;
     private static Handler rootHandler;
 
     private GcmDatabase database;
+    private McsUpstreamQueue upstreamQueue;
+    private PersistentIdJournal persistentIdJournal;
+    private McsAckTracker ackTracker;
+    private McsDeliveryQueue deliveryQueue;
+    private McsExpiryFilter expiryFilter;
+    private McsDedupFilter dedupFilter;
+    private McsDeliveryStore deliveryStore;
+    private McsAllowlistTracker allowlistTracker;
+    private static McsCollapseBuffer collapseBuffer;
+    private McsConnectionRacer connectionRacer;
+    private McsTlsContext tlsContext;
+    private McsReconnectScheduler reconnectScheduler;
+    private McsReceiverCache receiverCache;
+    private McsIdleMonitor idleMonitor;
+    // Set while shutting down, when messages must no longer be held back
+    private volatile boolean shuttingDown;
+    private static McsMessageStats messageStats;
+    // Persistent ids sent with the current LoginRequest, acknowledged once the login succeeded
+    private List<String> loginPersistentIds = Collections.emptyList();
 
-    private AlarmManager alarmManager;
     private PowerManager powerManager;
     private static PowerManager.WakeLock wakeLock;
 
-    private static long currentDelay = 0;
-
     private Intent connectIntent;
 
     @Nullable
@@ -170,10 +221,42 @@ public class McsService extends Service implements Handler.Callback {
     @SuppressLint("PrivateApi")
     public void onCreate() {
         super.onCreate();
-        TriggerReceiver.register(this);
         database = new GcmDatabase(this);
-        heartbeatIntent = PendingIntent.getService(this, 0, new Intent(ACTION_HEARTBEAT, null, this, McsService.class), 0);
-        alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        upstreamQueue = new McsUpstreamQueue(this);
+        persistentIdJournal = new PersistentIdJournal(this);
+        ackTracker = new McsAckTracker(persistentIdJournal);
+        messageStats = new McsMessageStats(database);
+        receiverCache = new McsReceiverCache(this, database);
+        receiverCache.register();
+        deliveryStore = new McsDeliveryStore(this);
+        deliveryQueue = new McsDeliveryQueue(this, deliveryStore, this::handleAppMessage);
+        collapseBuffer = new McsCollapseBuffer(deliveryQueue.getHandler(), new McsCollapseBuffer.Target() {
+            @Override
+            public boolean isReachable(String packageName) {
+                return isAppReachable(packageName);
+            }
+
+            @Override
+            public void deliver(DataMessageStanza message) {
+                deliverAppMessage(message, receiverCache.get(message.category), true);
+            }
+
+            @Override
+            public void discard(DataMessageStanza message) {
+                deliveryStore.remove(message);
+            }
+        });
+        idleMonitor = new McsIdleMonitor(this, idle -> deliveryQueue.setHoldNormalPriority(idle));
+        idleMonitor.register();
+        expiryFilter = new McsExpiryFilter();
+        dedupFilter = new McsDedupFilter(this);
+        restoreUndelivered();
+        allowlistTracker = new McsAllowlistTracker();
+        connectionRacer = new McsConnectionRacer(this);
+        tlsContext = McsTlsContext.get(this);
+        reconnectScheduler = new McsReconnectScheduler(this, new Handler(Looper.getMainLooper()), this);
+        reconnectScheduler.register();
+        wakeupScheduler = McsWakeupScheduler.get(this);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
         if (checkSelfPermission("android.permission.CHANGE_DEVICE_IDLE_TEMP_WHITELIST") == PackageManager.PERMISSION_GRANTED) {
             try {
@@ -220,9 +303,20 @@ public class McsService extends Service implements Handler.Callback {
     @Override
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
-        alarmManager.cancel(heartbeatIntent);
+        wakeupScheduler.cancel(McsWakeupScheduler.HEARTBEAT);
+        reconnectScheduler.unregister();
         closeAll();
+        idleMonitor.unregister();
+        shuttingDown = true;
+        // Delivers everything that is queued or held before the stats are written and the database is closed
+        deliveryQueue.quit(collapseBuffer::deliverAll);
+        receiverCache.unregister();
+        messageStats.flush();
         database.close();
+        upstreamQueue.close();
+        persistentIdJournal.close();
+        dedupFilter.close();
+        deliveryStore.close();
         super.onDestroy();
     }
 
@@ -233,12 +327,12 @@ public class McsService extends Service implements Handler.Callback {
 
     public synchronized static boolean isConnected(Context context) {
         warnIfNotPersistentProcess(McsService.class);
-        if (inputStream == null || !inputStream.isAlive() || outputStream == null || !outputStream.isAlive()) {
+        if (connection == null || !connection.isAlive()) {
             logd(null, "Connection is not enabled or dead.");
             return false;
         }
         // consider connection to be dead if we did not receive an ack within 90s to our ping
-        int heartbeatMs = GcmPrefs.get(context).getHeartbeatMsFor(activeNetworkPref);
+        int heartbeatMs = getHeartbeatMs(context);
         // if disabled for active network, heartbeatMs will be -1
         if (heartbeatMs < 0) {
             closeAll();
@@ -248,7 +342,12 @@ public class McsService extends Service implements Handler.Callback {
             long timeSinceLastPing = SystemClock.elapsedRealtime() - lastHeartbeatPingElapsedRealtime;
             if (noAckReceived && timeSinceLastPing > HEARTBEAT_ACK_AFTER_PING_TIMEOUT_MS) {
                 logd(null, "No heartbeat for " + timeSinceLastPing / 1000 + "s, connection assumed to be dead after 90s");
-                GcmPrefs.get(context).learnTimeout(context, activeNetworkPref);
+                noteTimeout(context, lastHeartbeatPingElapsedRealtime - lastIncomingNetworkRealtime);
+                // Closed right away, so later calls return above and the timeout is only recorded once
+                closeAll();
+                if (rootHandler != null) {
+                    rootHandler.sendMessage(rootHandler.obtainMessage(MSG_TEARDOWN, "No heartbeat ack"));
+                }
                 return false;
             }
         }
@@ -261,34 +360,141 @@ public class McsService extends Service implements Handler.Callback {
     }
 
     public static void scheduleReconnect(Context context) {
-        AlarmManager alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
-        long delay = getCurrentDelay();
+        long delay = getCurrentDelay(context);
         logd(context, "Scheduling reconnect in " + delay / 1000 + " seconds...");
-        PendingIntent pi = PendingIntent.getBroadcast(context, 1, new Intent(ACTION_RECONNECT, null, context, TriggerReceiver.class), 0);
-        alarmManager.setExactAndAllowWhileIdle(ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + delay, pi);
+        long triggerAt = SystemClock.elapsedRealtime() + delay;
+        McsWakeupScheduler.schedule(context, McsWakeupScheduler.RECONNECT, triggerAt, triggerAt + RECONNECT_TOLERANCE_MS);
     }
 
     public void scheduleHeartbeat(Context context) {
-        AlarmManager alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
+        scheduleHeartbeat(context, SystemClock.elapsedRealtime());
+    }
 
-        int heartbeatMs = GcmPrefs.get(this).getHeartbeatMsFor(activeNetworkPref);
+    /**
+     * Schedules the next heartbeat one interval after {@code lastTrafficRealtime}.
+     */
+    private void scheduleHeartbeat(Context context, long lastTrafficRealtime) {
+        int heartbeatMs = getHeartbeatMs(context);
         if (heartbeatMs < 0) {
             closeAll();
         }
-        logd(context, "Scheduling heartbeat in " + heartbeatMs / 1000 + " seconds...");
-        // This is supposed to work even when running in idle and without battery optimization disabled
-        alarmManager.setExactAndAllowWhileIdle(ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + heartbeatMs, heartbeatIntent);
+        long triggerAt = lastTrafficRealtime + heartbeatMs;
+        McsConnection connection = McsService.connection;
+        if (connection != null && heartbeatMs > 0) {
+            connection.setReadTimeout(getReadTimeoutMs(heartbeatMs));
+        }
+        logd(context, "Scheduling heartbeat in " + (triggerAt - SystemClock.elapsedRealtime()) / 1000 + " seconds...");
+        wakeupScheduler.set(McsWakeupScheduler.HEARTBEAT, triggerAt - getHeartbeatToleranceMs(heartbeatMs), triggerAt);
+    }
+
+    private static int getHeartbeatToleranceMs(int heartbeatMs) {
+        return Math.max(HEARTBEAT_MIN_TOLERANCE_MS, heartbeatMs / 10);
+    }
+
+    /**
+     * Without incoming traffic, a ping is sent after one interval (see {@link #getHeartbeatSkipTraffic()}), so if its
+     * ack did not arrive shortly after, the connection is dead. The second interval covers alarms delivered late.
+     */
+    private static int getReadTimeoutMs(int heartbeatMs) {
+        return 2 * heartbeatMs + HEARTBEAT_ACK_AFTER_PING_TIMEOUT_MS;
+    }
+
+    /**
+     * Enables TCP keepalive, so the kernel detects a dead connection while the device is awake. Probes start after
+     * the heartbeat interval without traffic, where the kernel allows to configure it.
+     */
+    private static void enableKeepAlive(Socket socket, int heartbeatMs) {
+        try {
+            socket.setKeepAlive(true);
+        } catch (SocketException e) {
+            Log.d(TAG, "TCP keepalive not supported: " + e);
+            return;
+        }
+        if (heartbeatMs <= 0) return;
+        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.fromSocket(socket)) {
+            Os.setsockoptInt(pfd.getFileDescriptor(), OsConstants.IPPROTO_TCP, TCP_KEEPIDLE, heartbeatMs / 1000);
+            Os.setsockoptInt(pfd.getFileDescriptor(), OsConstants.IPPROTO_TCP, TCP_KEEPINTVL, KEEPALIVE_INTERVAL_SECONDS);
+            Os.setsockoptInt(pfd.getFileDescriptor(), OsConstants.IPPROTO_TCP, TCP_KEEPCNT, KEEPALIVE_COUNT);
+        } catch (Exception e) {
+            Log.d(TAG, "Using default TCP keepalive timing: " + e);
+        }
+    }
+
+    /**
+     * @return how long the connection was idle before it was found dead: until the unanswered ping if there is one,
+     * until now otherwise.
+     */
+    private static long getIdleBeforeTimeout() {
+        long end = isPingPending() ? lastHeartbeatPingElapsedRealtime : SystemClock.elapsedRealtime();
+        return end - lastIncomingNetworkRealtime;
+    }
+
+    /**
+     * @return true if nothing was received since the last ping
+     */
+    private static boolean isPingPending() {
+        return lastHeartbeatAckElapsedRealtime < lastHeartbeatPingElapsedRealtime &&
+                lastIncomingNetworkRealtime < lastHeartbeatPingElapsedRealtime;
+    }
+
+    /**
+     * Incoming traffic proves the connection works and keeps the NAT mapping alive, so a heartbeat is only needed
+     * after a full interval without receiving anything. Outgoing traffic is not counted, as it does not prove the
+     * server can still reach us, and must not postpone the ping past the read deadline.
+     *
+     * @return the time of the last incoming traffic if the heartbeat can be skipped, -1 otherwise
+     */
+    private long getHeartbeatSkipTraffic() {
+        int heartbeatMs = getHeartbeatMs(this);
+        if (heartbeatMs <= 0) return -1;
+        if (isPingPending()) return -1;
+        long lastTraffic = lastIncomingNetworkRealtime;
+        if (SystemClock.elapsedRealtime() - lastTraffic >= heartbeatMs - getHeartbeatToleranceMs(heartbeatMs)) return -1;
+        return lastTraffic;
+    }
+
+    private static int getHeartbeatMs(Context context) {
+        GcmPrefs prefs = GcmPrefs.get(context);
+        if (activeNetworkPref != null && prefs.isHeartbeatLearntFor(activeNetworkPref)) {
+            // An interval configured by the user always wins, the one requested by the server wins over learning
+            if (serverHeartbeatMs > 0) return serverHeartbeatMs;
+            if (activeNetworkIdentity != null) {
+                return McsHeartbeatLearner.get(context).getIntervalMs(activeNetworkIdentity);
+            }
+        }
+        return prefs.getHeartbeatMsFor(activeNetworkPref);
+    }
+
+    private static void noteTimeout(Context context, long idleMs) {
+        noteHeartbeatStat(true, idleMs);
+        if (serverHeartbeatMs > 0) {
+            logd(context, "Heartbeat interval requested by server timed out, falling back to learnt interval");
+            serverHeartbeatMs = 0;
+        }
+        if (activeNetworkIdentity == null) return;
+        McsHeartbeatLearner.get(context).noteTimeout(activeNetworkIdentity, idleMs);
     }
 
-    public synchronized static long getCurrentDelay() {
-        long delay = currentDelay == 0 ? 5000 : currentDelay;
-        if (currentDelay < SettingsProvider.INTERVAL) currentDelay += 10000;
-        if (currentDelay >= SettingsProvider.INTERVAL && currentDelay < 600000) currentDelay += SettingsProvider.INTERVAL;
-        return delay;
+    private static void noteHeartbeatStat(boolean timeout, long idleMs) {
+        if (connectedAddress == null || idleMs <= 0) return;
+        lastHeartbeatStat = new HeartbeatStat.Builder()
+                .ip(connectedAddress.getAddress().getHostAddress())
+                .timeout(timeout)
+                .interval_ms((int) Math.min(Integer.MAX_VALUE, idleMs))
+                .build();
     }
 
-    public synchronized static void resetCurrentDelay() {
-        currentDelay = 0;
+    public static long getCurrentDelay(Context context) {
+        return McsReconnectScheduler.nextDelay(getActiveNetworkKey(context));
+    }
+
+    public static void resetCurrentDelay(Context context) {
+        McsReconnectScheduler.resetDelay(getActiveNetworkKey(context));
+    }
+
+    private static String getActiveNetworkKey(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return McsHeartbeatLearner.getNetworkIdentity(context, cm.getActiveNetwork());
     }
 
 
@@ -338,9 +544,13 @@ public class McsService extends Service implements Handler.Callback {
             intent.removeExtra(EXTRA_APP_OVERRIDE);
         }
         intent.removeExtra(EXTRA_APP);
+        noteAppActive(packageName);
 
+        int ttl = McsUpstreamQueue.MAX_TTL_SECONDS;
         try {
-            intent.hasExtra(EXTRA_TTL);
+            if (intent.hasExtra(EXTRA_TTL)) {
+                ttl = Integer.parseInt(String.valueOf(intent.getExtras().get(EXTRA_TTL)));
+            }
         } catch (NumberFormatException e) {
             // TODO: error TtlUnsupported
             Log.w(TAG, e);
@@ -388,48 +598,83 @@ public class McsService extends Service implements Handler.Callback {
         try {
             DataMessageStanza msg = new DataMessageStanza.Builder()
                     .sent(System.currentTimeMillis() / 1000L)
-                    .id(Integer.toHexString(nextMessageId.incrementAndGet()))
+                    .id(nextMessageId())
                     .persistent_id(messageId)
                     .token(collapseKey)
                     .from(from)
                     .reg_id(registrationId)
                     .to(to)
                     .category(packageName)
+                    .ttl(intent.hasExtra(EXTRA_TTL) ? ttl : null)
                     .raw_data(rawData)
                     .app_data(appData).build();
 
-            send(MCS_DATA_MESSAGE_STANZA_TAG, msg);
-            database.noteAppMessage(packageName, DataMessageStanza.ADAPTER.encodedSize(msg));
+            if (ttl > 0) {
+                // Keep until acknowledged by the server, so it survives connection loss
+                upstreamQueue.add(msg, ttl);
+            }
+            // Might have been sent already by the resend after a login that happened meanwhile
+            if (ttl <= 0 || upstreamQueue.markSending(msg.id)) {
+                send(MCS_DATA_MESSAGE_STANZA_TAG, msg);
+            }
+            noteAppMessage(packageName, DataMessageStanza.ADAPTER.encodedSize(msg));
         } catch (Exception e) {
             Log.w(TAG, e);
         }
     }
 
-    private void connect(int port) {
-        try {
-            wasTornDown = false;
-
-            logd(this, "Starting MCS connection to port " + port + "...");
-            Socket socket = new Socket(SERVICE_HOST, port);
-            logd(this, "Connected to " + SERVICE_HOST + ":" + port);
-            sslSocket = SSLContext.getDefault().getSocketFactory().createSocket(socket, SERVICE_HOST, port, true);
-            logd(this, "Activated SSL with " + SERVICE_HOST + ":" + port);
-            inputStream = new McsInputStream(sslSocket.getInputStream(), rootHandler);
-            outputStream = new McsOutputStream(sslSocket.getOutputStream(), rootHandler);
-            inputStream.start();
-            outputStream.start();
-
-            startTimestamp = System.currentTimeMillis();
-            lastHeartbeatPingElapsedRealtime = SystemClock.elapsedRealtime();
-            lastHeartbeatAckElapsedRealtime = SystemClock.elapsedRealtime();
-            lastIncomingNetworkRealtime = SystemClock.elapsedRealtime();
-            scheduleHeartbeat(this);
-        } catch (Exception e) {
-            Log.w(TAG, "Exception while connecting to " + SERVICE_HOST + ":" + port, e);
-            rootHandler.sendMessage(rootHandler.obtainMessage(MSG_TEARDOWN, e));
-            closeAll();
+    private void connect(String networkKey, Network network) throws IOException {
+        wasTornDown = false;
+
+        logd(this, "Starting MCS connection...");
+        lastStreamIdSent = 0;
+        serverHeartbeatMs = 0;
+        upstreamQueue.resetStreamIds();
+        ackTracker.reset();
+        int heartbeatMs = getHeartbeatMs(this);
+        if (GcmPrefs.get(this).getNioConnection()) {
+            // The TLS handshake runs on the connection thread, so only the TCP connect is raced
+            McsConnectionRacer.Result<SocketChannel> result = connectionRacer.race(SERVICE_HOST, SERVICE_PORTS, networkKey, network, (address, timeoutMs, attempt) -> {
+                SocketChannel channel = SocketChannel.open();
+                attempt.track(channel);
+                if (network != null) network.bindSocket(channel.socket());
+                channel.socket().connect(address, timeoutMs);
+                enableKeepAlive(channel.socket(), heartbeatMs);
+                return channel;
+            });
+            logd(this, "Connected to " + result.address);
+            connectedAddress = result.address;
+            SSLEngine engine = tlsContext.createEngine(SERVICE_HOST, result.address.getPort());
+            connection = new McsNioConnection(result.connection, engine, rootHandler, tlsContext);
+        } else {
+            McsConnectionRacer.Result<SSLSocket> result = connectionRacer.race(SERVICE_HOST, SERVICE_PORTS, networkKey, network, (address, timeoutMs, attempt) -> {
+                Socket socket = new Socket();
+                attempt.track(socket);
+                if (network != null) network.bindSocket(socket);
+                socket.connect(address, timeoutMs);
+                enableKeepAlive(socket, heartbeatMs);
+                SSLSocket sslSocket = tlsContext.createSocket(socket, SERVICE_HOST, address.getPort());
+                sslSocket.setSoTimeout(timeoutMs);
+                long handshakeStart = SystemClock.elapsedRealtime();
+                long handshakeStartTime = System.currentTimeMillis();
+                sslSocket.startHandshake();
+                tlsContext.noteHandshake(sslSocket.getSession(), handshakeStartTime, SystemClock.elapsedRealtime() - handshakeStart);
+                sslSocket.setSoTimeout(0);
+                return sslSocket;
+            });
+            logd(this, "Activated SSL with " + result.address);
+            connectedAddress = result.address;
+            connection = new McsStreamConnection(result.connection, rootHandler);
         }
+        connection.start();
+        connectedNetwork = network;
+        wakeupScheduler.cancel(McsWakeupScheduler.RECONNECT);
 
+        startTimestamp = System.currentTimeMillis();
+        lastHeartbeatPingElapsedRealtime = SystemClock.elapsedRealtime();
+        lastHeartbeatAckElapsedRealtime = SystemClock.elapsedRealtime();
+        lastIncomingNetworkRealtime = SystemClock.elapsedRealtime();
+        scheduleHeartbeat(this);
     }
 
     private synchronized void connect() {
@@ -448,20 +693,17 @@ public class McsService extends Service implements Handler.Callback {
             return;
         }
 
-        Exception exception = null;
-        for (int port : SERVICE_PORTS) {
-            try {
-                connect(port);
-                return;
-            } catch (Exception e) {
-                exception = e;
-                Log.w(TAG, "Exception while connecting to " + SERVICE_HOST + ":" + port, e);
-                closeAll();
-            }
+        Network network = reconnectScheduler.getCurrentNetwork();
+        if (network == null) network = cm.getActiveNetwork();
+        activeNetworkIdentity = McsHeartbeatLearner.getNetworkIdentity(this, network);
+        try {
+            connect(activeNetworkIdentity, network);
+        } catch (Exception e) {
+            Log.w(TAG, "Exception while connecting to " + SERVICE_HOST, e);
+            closeAll();
+            logd(this, "Unable to connect to all different ports, retrying later");
+            rootHandler.sendMessage(rootHandler.obtainMessage(MSG_TEARDOWN, e));
         }
-
-        logd(this, "Unable to connect to all different ports, retrying later");
-        rootHandler.sendMessage(rootHandler.obtainMessage(MSG_TEARDOWN, exception));
     }
 
     private void handleClose() {
@@ -470,43 +712,96 @@ public class McsService extends Service implements Handler.Callback {
 
     private void handleLoginResponse(LoginResponse loginResponse) {
         if (loginResponse.error == null) {
-            GcmPrefs.clearLastPersistedId(this);
+            persistentIdJournal.removeAll(loginPersistentIds);
+            persistentIdJournal.compact();
+            loginPersistentIds = Collections.emptyList();
             logd(this, "Logged in");
+            if (loginResponse.server_timestamp != null) {
+                serverTimeOffsetMs = loginResponse.server_timestamp - System.currentTimeMillis();
+                logd(this, "Server clock offset is " + serverTimeOffsetMs + "ms");
+            }
+            handleHeartbeatConfig(loginResponse.heartbeat_config);
             wakeLock.release();
+            List<DataMessageStanza> pending = upstreamQueue.getPending();
+            if (!pending.isEmpty()) {
+                logd(this, "Resending " + pending.size() + " unacknowledged upstream messages");
+                for (DataMessageStanza message : pending) {
+                    send(MCS_DATA_MESSAGE_STANZA_TAG, message);
+                }
+            }
         } else {
             throw new RuntimeException("Could not login: " + loginResponse.error);
         }
     }
 
+    private void handleHeartbeatConfig(HeartbeatConfig config) {
+        if (config == null || !GcmPrefs.get(this).getAdaptiveHeartbeat()) return;
+        if (config.upload_stat != null) uploadHeartbeatStat = config.upload_stat;
+        if (config.interval_ms != null && config.interval_ms > 0) {
+            serverHeartbeatMs = Math.max(McsHeartbeatLearner.MIN_INTERVAL_MS, Math.min(McsHeartbeatLearner.MAX_INTERVAL_MS, config.interval_ms));
+            logd(this, "Server requested heartbeat interval of " + serverHeartbeatMs / 1000 + " seconds");
+            // The heartbeat was scheduled with the previous interval
+            scheduleHeartbeat(this);
+        }
+    }
+
     private void handleCloudMessage(DataMessageStanza message) {
         if (message.persistent_id != null) {
-            GcmPrefs.get(this).extendLastPersistedId(this, message.persistent_id);
+            persistentIdJournal.add(message.persistent_id);
+            if (ackTracker.noteReceived(message.persistent_id)) {
+                rootHandler.removeMessages(MSG_SELECTIVE_ACK);
+                rootHandler.sendMessage(rootHandler.obtainMessage(MSG_SELECTIVE_ACK));
+            } else if (!rootHandler.hasMessages(MSG_SELECTIVE_ACK)) {
+                rootHandler.sendMessageDelayed(rootHandler.obtainMessage(MSG_SELECTIVE_ACK), SELECTIVE_ACK_DELAY_MS);
+            }
         }
         if (SELF_CATEGORY.equals(message.category)) {
             handleSelfMessage(message);
+        } else if (message.persistent_id != null && !dedupFilter.add(message.persistent_id)) {
+            // Sent again by the server, e.g. because our acknowledgement got lost on reconnect
+            logd(this, "Dropping duplicate message " + message.persistent_id + " for " + message.category);
         } else {
-            handleAppMessage(message);
+            long expiredSince = expiryFilter.checkExpired(message, serverTimeOffsetMs);
+            if (expiredSince > 0) {
+                // Acknowledged above like any other message, so the server does not send it again
+                logd(this, "Dropping message for " + message.category + ", expired " + expiredSince / 1000 + "s ago");
+                noteAppMessage(message.category, DataMessageStanza.ADAPTER.encodedSize(message));
+            } else {
+                // Acknowledged above already, so it has to survive process death until it is delivered
+                deliveryStore.add(message);
+                // Resolving receivers and sending broadcasts happens on the delivery thread
+                deliveryQueue.enqueue(message);
+            }
         }
     }
 
     private void handleHeartbeatPing(HeartbeatPing ping) {
         HeartbeatAck.Builder ack = new HeartbeatAck.Builder().status(ping.status);
-        if (inputStream.newStreamIdAvailable()) {
-            ack.last_stream_id_received(inputStream.getStreamId());
+        if (connection.newStreamIdAvailable()) {
+            ack.last_stream_id_received(connection.getStreamId());
         }
         send(MCS_HEARTBEAT_ACK_TAG, ack.build());
     }
 
     private void handleHeartbeatAck() {
-        GcmPrefs.get(this).learnReached(this, activeNetworkPref, SystemClock.elapsedRealtime() - lastIncomingNetworkRealtime);
+        long idleMs = SystemClock.elapsedRealtime() - lastIncomingNetworkRealtime;
+        noteHeartbeatStat(false, idleMs);
+        if (activeNetworkIdentity != null) {
+            McsHeartbeatLearner learner = McsHeartbeatLearner.get(this);
+            learner.noteReached(activeNetworkIdentity, idleMs);
+            GcmPrefs.get(this).setLearntInterval(this, activeNetworkPref, learner.getIntervalMs(activeNetworkIdentity));
+        }
         lastHeartbeatAckElapsedRealtime = SystemClock.elapsedRealtime();
         wakeLock.release();
     }
 
     private LoginRequest buildLoginRequest() {
         LastCheckinInfo info = LastCheckinInfo.read(this);
+        loginPersistentIds = persistentIdJournal.getIds();
+        boolean adaptiveHeartbeat = GcmPrefs.get(this).getAdaptiveHeartbeat();
         return new LoginRequest.Builder()
-                .adaptive_heartbeat(false)
+                .adaptive_heartbeat(adaptiveHeartbeat)
+                .heartbeat_stat(adaptiveHeartbeat && uploadHeartbeatStat ? lastHeartbeatStat : null)
                 .auth_service(LoginRequest.AuthService.ANDROID_ID)
                 .auth_token(Long.toString(info.getSecurityToken()))
                 .id("android-" + SDK_INT)
@@ -517,14 +812,61 @@ public class McsService extends Service implements Handler.Callback {
                 .user(Long.toString(info.getAndroidId()))
                 .use_rmq2(true)
                 .setting(Collections.singletonList(new Setting.Builder().name("new_vc").value_("1").build()))
-                .received_persistent_id(GcmPrefs.get(this).getLastPersistedIds())
+                .received_persistent_id(loginPersistentIds)
                 .build();
     }
 
-    private void handleAppMessage(DataMessageStanza msg) {
+    /**
+     * Queues the messages that were received but not delivered before the process ended last time.
+     */
+    private void restoreUndelivered() {
+        List<DataMessageStanza> messages = deliveryStore.getAll();
+        if (messages.isEmpty()) return;
+        logd(this, "Restoring " + messages.size() + " undelivered messages");
+        for (DataMessageStanza message : messages) {
+            // The server clock offset is not known yet, but messages expired for long are still detected
+            if (expiryFilter.checkExpired(message, serverTimeOffsetMs) > 0) {
+                deliveryStore.remove(message);
+            } else {
+                deliveryQueue.enqueue(message);
+            }
+        }
+    }
+
+    private void handleAppMessage(DataMessageStanza msg, boolean newBurst) {
+        noteAppMessage(msg.category, DataMessageStanza.ADAPTER.encodedSize(msg));
+        McsReceiverCache.Target target = receiverCache.get(msg.category);
+        if (msg.token != null && !target.wakeForDelivery && !shuttingDown) {
+            // The app is not woken for this message anyway, so only the newest message per collapse key matters
+            collapseBuffer.hold(msg);
+        } else {
+            deliverAppMessage(msg, target, newBurst);
+        }
+    }
+
+    private boolean isAppReachable(String packageName) {
+        try {
+            ApplicationInfo info = getPackageManager().getApplicationInfo(packageName, 0);
+            return (info.flags & ApplicationInfo.FLAG_STOPPED) == 0;
+        } catch (PackageManager.NameNotFoundException e) {
+            // Delivering will not find any receiver and thus drop the message
+            return true;
+        }
+    }
+
+    /**
+     * Called when an app shows that it is running, so messages held back for it can be delivered.
+     */
+    public static void noteAppActive(String packageName) {
+        McsCollapseBuffer buffer = collapseBuffer;
+        if (buffer != null) buffer.flush(packageName);
+    }
+
+    /**
+     * @param allowlist whether to add the app to the temp allowlist, which is done once per burst of messages
+     */
+    private void deliverAppMessage(DataMessageStanza msg, McsReceiverCache.Target target, boolean allowlist) {
         String packageName = msg.category;
-        database.noteAppMessage(packageName, DataMessageStanza.ADAPTER.encodedSize(msg));
-        GcmDatabase.App app = database.getApp(packageName);
 
         Intent intent = new Intent();
         intent.setAction(ACTION_C2DM_RECEIVE);
@@ -533,7 +875,7 @@ public class McsService extends Service implements Handler.Callback {
         if (msg.persistent_id != null) {
             intent.putExtra(EXTRA_MESSAGE_ID, msg.persistent_id);
         }
-        if (app.wakeForDelivery) {
+        if (target.wakeForDelivery) {
             intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
         } else {
             intent.addFlags(Intent.FLAG_EXCLUDE_STOPPED_PACKAGES);
@@ -543,62 +885,88 @@ public class McsService extends Service implements Handler.Callback {
             intent.putExtra(appData.key, appData.value_);
         }
 
-        String receiverPermission = null;
-        try {
-            String name = packageName + ".permission.C2D_MESSAGE";
-            PermissionInfo info = getPackageManager().getPermissionInfo(name, 0);
-            if (info.packageName.equals(packageName)) {
-                receiverPermission = name;
-            }
-        } catch (Exception ignored) {
-            // Keep null, no valid permission found
-        }
-
-        if (receiverPermission == null) {
+        if (target.receiverPermission == null) {
             // Without receiver permission, we only restrict by package name
-            if (app.wakeForDelivery) addPowerSaveTempWhitelistApp(packageName);
+            if (target.wakeForDelivery && allowlist) addPowerSaveTempWhitelistApp(packageName, target.uid);
             logd(this, "Deliver message to all receivers in package " + packageName);
             intent.setPackage(packageName);
             sendOrderedBroadcast(intent, null);
+        } else if (target.ownReceivers.isEmpty() && target.permissionReceivers.isEmpty()) {
+            logd(this, "No target for message, wut?");
         } else {
-            List<ResolveInfo> infos = getPackageManager().queryBroadcastReceivers(intent, PackageManager.GET_RESOLVED_FILTER);
-            if (infos == null || infos.isEmpty()) {
-                logd(this, "No target for message, wut?");
-            } else {
-                for (ResolveInfo resolveInfo : infos) {
-                    Intent targetIntent = new Intent(intent);
-                    targetIntent.setComponent(new ComponentName(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name));
-                    if (resolveInfo.activityInfo.packageName.equals(packageName)) {
-                        if (app.wakeForDelivery) addPowerSaveTempWhitelistApp(packageName);
-                        // We don't need receiver permission for our own package
-                        logd(this, "Deliver message to own receiver " + resolveInfo);
-                        sendOrderedBroadcast(targetIntent, null);
-                    } else if (resolveInfo.filter.hasCategory(packageName)) {
-                        // Permission required
-                        logd(this, "Deliver message to third-party receiver (with permission check)" + resolveInfo);
-                        sendOrderedBroadcast(targetIntent, receiverPermission);
-                    }
-                }
+            if (!target.ownReceivers.isEmpty() && target.wakeForDelivery && allowlist) {
+                addPowerSaveTempWhitelistApp(packageName, target.uid);
             }
+            for (ComponentName component : target.ownReceivers) {
+                Intent targetIntent = new Intent(intent);
+                targetIntent.setComponent(component);
+                // We don't need receiver permission for our own package
+                logd(this, "Deliver message to own receiver " + component);
+                sendOrderedBroadcast(targetIntent, null);
+            }
+            for (ComponentName component : target.permissionReceivers) {
+                Intent targetIntent = new Intent(intent);
+                targetIntent.setComponent(component);
+                // Permission required
+                logd(this, "Deliver message to third-party receiver (with permission check)" + component);
+                sendOrderedBroadcast(targetIntent, target.receiverPermission);
+            }
+        }
+        deliveryStore.remove(msg);
+    }
+
+    @Override
+    public void onNetworkAvailable(Network network) {
+        Handler handler = rootHandler;
+        if (handler != null) handler.sendMessage(handler.obtainMessage(MSG_NETWORK_AVAILABLE, network));
+    }
+
+    @Override
+    public void onNetworkLost(Network network) {
+        Handler handler = rootHandler;
+        if (handler != null) handler.sendMessage(handler.obtainMessage(MSG_NETWORK_LOST, network));
+    }
+
+    private void noteAppMessage(String packageName, int numBytes) {
+        if (messageStats.noteAppMessage(packageName, numBytes)) scheduleStatsFlush();
+    }
+
+    private static void scheduleStatsFlush() {
+        Handler handler = rootHandler;
+        if (handler != null) {
+            handler.removeMessages(MSG_FLUSH_STATS);
+            handler.sendMessageDelayed(handler.obtainMessage(MSG_FLUSH_STATS), McsMessageStats.FLUSH_DELAY_MS);
         }
     }
 
-    private void addPowerSaveTempWhitelistApp(String packageName) {
+    /**
+     * Writes pending message counters to the database, so they can be read from other processes.
+     */
+    public static void flushMessageStats() {
+        McsMessageStats stats = messageStats;
+        // Counters that could not be written are only noted as pending, so retry them later
+        if (stats != null && !stats.flush()) scheduleStatsFlush();
+    }
+
+    private void addPowerSaveTempWhitelistApp(String packageName, int uid) {
+        if (!allowlistTracker.needsGrant(packageName)) return;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             try {
                 if (addToTemporaryAllowListMethod != null && powerExemptionManager != null) {
                     logd(this, "Adding app " + packageName + " to the temp allowlist");
-                    addToTemporaryAllowListMethod.invoke(powerExemptionManager, packageName, 0, "GCM Push", 10000);
+                    addToTemporaryAllowListMethod.invoke(powerExemptionManager, packageName, 0, "GCM Push", McsAllowlistTracker.GRANT_DURATION_MS);
+                    allowlistTracker.noteGranted(packageName);
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Error adding app" + packageName + " to the temp allowlist.", e);
             }
         } else {
             try {
-                if (getUserIdMethod != null && addPowerSaveTempWhitelistAppMethod != null && deviceIdleController != null) {
-                    int userId = (int) getUserIdMethod.invoke(null, getPackageManager().getApplicationInfo(packageName, 0).uid);
+                if (uid >= 0 && getUserIdMethod != null && addPowerSaveTempWhitelistAppMethod != null && deviceIdleController != null) {
+                    int userId = (int) getUserIdMethod.invoke(null, uid);
                     logd(this, "Adding app " + packageName + " for userId " + userId + " to the temp whitelist");
-                    addPowerSaveTempWhitelistAppMethod.invoke(deviceIdleController, packageName, 10000, userId, "GCM Push");
+                    addPowerSaveTempWhitelistAppMethod.invoke(deviceIdleController, packageName, McsAllowlistTracker.GRANT_DURATION_MS, userId, "GCM Push");
+                    allowlistTracker.noteGranted(packageName);
                 }
             } catch (Exception e) {
                 Log.w(TAG, e);
@@ -610,30 +978,35 @@ public class McsService extends Service implements Handler.Callback {
         for (AppData appData : msg.app_data) {
             if (IDLE_NOTIFICATION.equals(appData.key)) {
                 DataMessageStanza.Builder msgResponse = new DataMessageStanza.Builder()
-                        .id(Integer.toHexString(nextMessageId.incrementAndGet()))
+                        .id(nextMessageId())
                         .from(FROM_FIELD)
                         .sent(System.currentTimeMillis() / 1000)
                         .ttl(0)
                         .category(SELF_CATEGORY)
                         .app_data(Collections.singletonList(new AppData.Builder().key(IDLE_NOTIFICATION).value_("false").build()));
-                if (inputStream.newStreamIdAvailable()) {
-                    msgResponse.last_stream_id_received(inputStream.getStreamId());
+                if (connection.newStreamIdAvailable()) {
+                    msgResponse.last_stream_id_received(connection.getStreamId());
                 }
                 send(MCS_DATA_MESSAGE_STANZA_TAG, msgResponse.build());
             }
         }
     }
 
+    private String nextMessageId() {
+        return messageIdPrefix + Integer.toHexString(messageIdCounter.incrementAndGet());
+    }
+
     private void send(int type, Message message) {
         rootHandler.sendMessage(rootHandler.obtainMessage(MSG_OUTPUT, type, 0, message));
     }
 
     private void sendOutputStream(int arg, Object obj) {
-        McsOutputStream os = outputStream;
-        if (os != null && os.isAlive()) {
-            Handler outputHandler = os.getHandler();
-            if (outputHandler != null)
-                outputHandler.sendMessage(outputHandler.obtainMessage(McsConstants.MSG_OUTPUT, arg, 0, obj));
+        McsConnection connection = McsService.connection;
+        if (connection != null && connection.isAlive()) {
+            connection.send(arg, (Message) obj);
+        } else if (arg == MCS_DATA_MESSAGE_STANZA_TAG) {
+            // Dropped, so it has to be sent again after the next login
+            upstreamQueue.unmarkSending(((DataMessageStanza) obj).id);
         }
     }
 
@@ -649,10 +1022,16 @@ public class McsService extends Service implements Handler.Callback {
             case MSG_INPUT_ERROR:
             case MSG_OUTPUT_ERROR:
                 logd(this, "I/O error: " + msg.obj);
-                if (msg.obj instanceof SocketException) {
+                if (msg.obj instanceof SocketTimeoutException) {
+                    // Read deadline passed without anything received
+                    noteTimeout(this, getIdleBeforeTimeout());
+                } else if (msg.obj instanceof SocketException) {
                     SocketException e = (SocketException) msg.obj;
                     if ("Connection reset".equals(e.getMessage())) {
-                        GcmPrefs.get(this).learnTimeout(this, activeNetworkPref);
+                        noteTimeout(this, SystemClock.elapsedRealtime() - lastIncomingNetworkRealtime);
+                    } else if (e.getMessage() != null && e.getMessage().contains("ETIMEDOUT")) {
+                        // TCP keepalive probes were not answered
+                        noteTimeout(this, getIdleBeforeTimeout());
                     }
                 }
                 rootHandler.sendMessage(rootHandler.obtainMessage(MSG_TEARDOWN, msg.obj));
@@ -670,13 +1049,21 @@ public class McsService extends Service implements Handler.Callback {
             case MSG_HEARTBEAT:
                 logd(this, "Heartbeat initiated, reason: " + msg.obj);
                 if (isConnected(this)) {
+                    long lastTraffic = getHeartbeatSkipTraffic();
+                    if (lastTraffic >= 0) {
+                        logd(this, "Skipping heartbeat, last traffic " + (SystemClock.elapsedRealtime() - lastTraffic) / 1000 + "s ago");
+                        scheduleHeartbeat(this, lastTraffic);
+                        wakeLock.release();
+                        return true;
+                    }
                     HeartbeatPing.Builder ping = new HeartbeatPing.Builder();
-                    if (inputStream.newStreamIdAvailable()) {
-                        ping.last_stream_id_received(inputStream.getStreamId());
+                    if (connection.newStreamIdAvailable()) {
+                        ping.last_stream_id_received(connection.getStreamId());
                     }
                     send(MCS_HEARTBEAT_PING_TAG, ping.build());
                     lastHeartbeatPingElapsedRealtime = SystemClock.elapsedRealtime();
                     scheduleHeartbeat(this);
+                    wakeupScheduler.onHeartbeatSent();
                 } else {
                     logd(this, "Ignoring heartbeat, not connected!");
                     scheduleReconnect(this);
@@ -690,14 +1077,47 @@ public class McsService extends Service implements Handler.Callback {
                             .id("")
                             .extension(new Extension.Builder().id(13).data_(ByteString.EMPTY).build()) // StreamAck
                             .status(0L);
-                    if (inputStream.newStreamIdAvailable()) {
-                        iq.last_stream_id_received(inputStream.getStreamId());
+                    if (connection.newStreamIdAvailable()) {
+                        iq.last_stream_id_received(connection.getStreamId());
                     }
                     send(MCS_IQ_STANZA_TAG, iq.build());
                 } else {
                     logd(this, "Ignoring ack, not connected!");
                 }
                 return true;
+            case MSG_NETWORK_AVAILABLE:
+                if (isConnected(this) && msg.obj.equals(connectedNetwork)) {
+                    return true;
+                }
+                logd(this, "Default network changed to " + msg.obj + ", reconnecting");
+                wakeLock.acquire(WAKELOCK_TIMEOUT);
+                connect();
+                return true;
+            case MSG_NETWORK_LOST:
+                if (msg.obj.equals(connectedNetwork)) {
+                    rootHandler.sendMessage(rootHandler.obtainMessage(MSG_TEARDOWN, "Network " + msg.obj + " lost"));
+                }
+                return true;
+            case MSG_FLUSH_STATS:
+                if (!messageStats.flush()) scheduleStatsFlush();
+                return true;
+            case MSG_SELECTIVE_ACK:
+                if (isConnected(this)) {
+                    List<String> ids = ackTracker.takeUnacknowledged();
+                    if (!ids.isEmpty()) {
+                        logd(this, "Acknowledging " + ids.size() + " received messages");
+                        IqStanza.Builder iq = new IqStanza.Builder()
+                                .type(IqStanza.IqType.SET)
+                                .id("")
+                                .extension(new Extension.Builder().id(12).data_(new SelectiveAck.Builder().id(ids).build().encodeByteString()).build()) // SelectiveAck
+                                .status(0L);
+                        if (connection.newStreamIdAvailable()) {
+                            iq.last_stream_id_received(connection.getStreamId());
+                        }
+                        send(MCS_IQ_STANZA_TAG, iq.build());
+                    }
+                }
+                return true;
             case MSG_OUTPUT_READY:
                 logd(this, "Sending login request...");
                 send(MCS_LOGIN_REQUEST_TAG, buildLoginRequest());
@@ -711,8 +1131,46 @@ public class McsService extends Service implements Handler.Callback {
     }
 
     private void handleOutputDone(android.os.Message msg) {
+        int streamId = ++lastStreamIdSent;
         if (msg.arg1 == MCS_HEARTBEAT_PING_TAG) {
             wakeLock.release();
+        } else if (msg.arg1 == MCS_DATA_MESSAGE_STANZA_TAG) {
+            upstreamQueue.noteSent(((DataMessageStanza) msg.obj).id, streamId);
+        } else if (msg.arg1 == MCS_IQ_STANZA_TAG) {
+            IqStanza iq = (IqStanza) msg.obj;
+            if (iq.extension != null && iq.extension.id == 12) {
+                try {
+                    ackTracker.noteSent(SelectiveAck.ADAPTER.decode(iq.extension.data_).id, streamId);
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+            }
+        }
+    }
+
+    private void handleIqStanza(IqStanza iq) throws IOException {
+        if (iq.extension != null && iq.extension.id == 12) {
+            SelectiveAck ack = SelectiveAck.ADAPTER.decode(iq.extension.data_);
+            upstreamQueue.confirmIds(ack.id);
+        }
+    }
+
+    private void handleServerAck(Message message) {
+        Integer lastStreamIdReceived = null;
+        if (message instanceof HeartbeatPing) {
+            lastStreamIdReceived = ((HeartbeatPing) message).last_stream_id_received;
+        } else if (message instanceof HeartbeatAck) {
+            lastStreamIdReceived = ((HeartbeatAck) message).last_stream_id_received;
+        } else if (message instanceof LoginResponse) {
+            lastStreamIdReceived = ((LoginResponse) message).last_stream_id_received;
+        } else if (message instanceof IqStanza) {
+            lastStreamIdReceived = ((IqStanza) message).last_stream_id_received;
+        } else if (message instanceof DataMessageStanza) {
+            lastStreamIdReceived = ((DataMessageStanza) message).last_stream_id_received;
+        }
+        if (lastStreamIdReceived != null) {
+            upstreamQueue.confirmStreamId(lastStreamIdReceived);
+            ackTracker.confirmStreamId(lastStreamIdReceived);
         }
     }
 
@@ -734,10 +1192,14 @@ public class McsService extends Service implements Handler.Callback {
                 case MCS_LOGIN_RESPONSE_TAG:
                     handleLoginResponse((LoginResponse) message);
                     break;
+                case MCS_IQ_STANZA_TAG:
+                    handleIqStanza((IqStanza) message);
+                    break;
                 default:
                     Log.w(TAG, "Unknown message: " + message);
             }
-            resetCurrentDelay();
+            handleServerAck(message);
+            if (activeNetworkIdentity != null) McsReconnectScheduler.resetDelay(activeNetworkIdentity);
             lastIncomingNetworkRealtime = SystemClock.elapsedRealtime();
         } catch (Exception e) {
             Log.w(TAG, "Exception when handling input: " + message, e);
@@ -756,14 +1218,7 @@ public class McsService extends Service implements Handler.Callback {
 
     private static void closeAll() {
         logd(null, "Closing all sockets...");
-        tryClose(inputStream);
-        tryClose(outputStream);
-        if (sslSocket != null) {
-            try {
-                sslSocket.close();
-            } catch (Exception ignored) {
-            }
-        }
+        tryClose(connection);
     }
 
     private void handleTeardown() {
@@ -776,10 +1231,15 @@ public class McsService extends Service implements Handler.Callback {
         }
         wasTornDown = true;
         closeAll();
+        logd(this, "Delivery stats: " + deliveryQueue + ", " + expiryFilter.getExpiredCount() + " expired, " + dedupFilter.getDuplicateCount() + " duplicates, " +
+                collapseBuffer.getCollapsedCount() + " collapsed, " + collapseBuffer.getAgedOutCount() + " held too long, " +
+                deliveryStore.getDroppedCount() + " dropped from store, " + allowlistTracker.getSkippedCount() + " allowlist grants skipped");
+        logd(this, "Wakeup stats: " + wakeupScheduler);
+        if (!messageStats.flush()) scheduleStatsFlush();
 
         scheduleReconnect(this);
 
-        alarmManager.cancel(heartbeatIntent);
+        wakeupScheduler.cancel(McsWakeupScheduler.HEARTBEAT);
         if (wakeLock != null) {
             try {
                 wakeLock.release();
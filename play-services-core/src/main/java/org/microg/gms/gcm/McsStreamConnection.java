@@ -0,0 +1,80 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT;
+
+import android.os.Handler;
+
+import com.squareup.wire.Message;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Blocking connection using a {@link McsInputStream} and a {@link McsOutputStream} thread on top of a socket.
+ */
+public class McsStreamConnection implements McsConnection {
+    private final Socket socket;
+    private final McsInputStream inputStream;
+    private final McsOutputStream outputStream;
+
+    public McsStreamConnection(Socket socket, Handler mainHandler) throws IOException {
+        this.socket = socket;
+        this.inputStream = new McsInputStream(socket.getInputStream(), mainHandler);
+        this.outputStream = new McsOutputStream(socket.getOutputStream(), mainHandler);
+    }
+
+    @Override
+    public void start() {
+        inputStream.start();
+        outputStream.start();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return inputStream.isAlive() && outputStream.isAlive();
+    }
+
+    @Override
+    public void send(int tag, Message message) {
+        if (outputStream.isAlive()) {
+            Handler outputHandler = outputStream.getHandler();
+            if (outputHandler != null)
+                outputHandler.sendMessage(outputHandler.obtainMessage(MSG_OUTPUT, tag, 0, message));
+        }
+    }
+
+    @Override
+    public int getStreamId() {
+        return inputStream.getStreamId();
+    }
+
+    @Override
+    public boolean newStreamIdAvailable() {
+        return inputStream.newStreamIdAvailable();
+    }
+
+    @Override
+    public void setReadTimeout(int timeoutMs) {
+        try {
+            // Applies to the blocking read of the input thread
+            socket.setSoTimeout(timeoutMs);
+        } catch (SocketException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        inputStream.close();
+        outputStream.close();
+        try {
+            socket.close();
+        } catch (Exception ignored) {
+        }
+    }
+}
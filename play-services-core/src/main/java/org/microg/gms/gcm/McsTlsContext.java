@@ -0,0 +1,152 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.security.Provider;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * TLS context used for all MCS connections, so reconnects to the same host can resume the previous session instead
+ * of doing a full handshake.
+ * <p>
+ * Prefers the bundled Conscrypt provider, which allows session tickets and a client session cache that is stored on
+ * disk and thus survives restarts of the persistent process. Falls back to the default context otherwise.
+ */
+public class McsTlsContext {
+    private static final String TAG = "GmsGcmTls";
+    private static final String[] CONSCRYPT_CLASSES = {"org.conscrypt.Conscrypt", "com.google.android.gms.org.conscrypt.Conscrypt"};
+    private static final String SESSION_CACHE_DIR = "gcm_tls_sessions";
+    private static final int SESSION_CACHE_SIZE = 16;
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private static McsTlsContext instance;
+
+    private final SSLContext sslContext;
+    private Method setUseSessionTicketsSocket;
+    private Method setUseSessionTicketsEngine;
+
+    private final AtomicInteger handshakes = new AtomicInteger();
+    private final AtomicInteger resumed = new AtomicInteger();
+    private final AtomicLong totalHandshakeMs = new AtomicLong();
+
+    public static synchronized McsTlsContext get(Context context) {
+        if (instance == null) instance = new McsTlsContext(context.getApplicationContext());
+        return instance;
+    }
+
+    private McsTlsContext(Context context) {
+        SSLContext sslContext = null;
+        for (String className : CONSCRYPT_CLASSES) {
+            try {
+                sslContext = createConscryptContext(context, Class.forName(className));
+                break;
+            } catch (ClassNotFoundException ignored) {
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to use " + className, e);
+            }
+        }
+        if (sslContext == null) {
+            try {
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        }
+        this.sslContext = sslContext;
+    }
+
+    private SSLContext createConscryptContext(Context context, Class<?> conscrypt) throws Exception {
+        Provider provider = (Provider) conscrypt.getMethod("newProvider").invoke(null);
+        SSLContext sslContext = SSLContext.getInstance("TLS", provider);
+        sslContext.init(null, null, null);
+        String packageName = conscrypt.getPackage().getName();
+        try {
+            Class<?> fileCacheClass = Class.forName(packageName + ".FileClientSessionCache");
+            Class<?> cacheClass = Class.forName(packageName + ".SSLClientSessionCache");
+            Object cache = fileCacheClass.getMethod("usingDirectory", File.class).invoke(null, new File(context.getCacheDir(), SESSION_CACHE_DIR));
+            conscrypt.getMethod("setClientSessionCache", SSLContext.class, cacheClass).invoke(null, sslContext, cache);
+        } catch (Exception e) {
+            Log.d(TAG, "Persistent session cache not available, keeping sessions in memory only: " + e);
+        }
+        try {
+            setUseSessionTicketsSocket = conscrypt.getMethod("setUseSessionTickets", SSLSocket.class, boolean.class);
+            setUseSessionTicketsEngine = conscrypt.getMethod("setUseSessionTickets", SSLEngine.class, boolean.class);
+        } catch (Exception e) {
+            Log.d(TAG, "Session tickets not available: " + e);
+        }
+        Log.d(TAG, "Using " + provider.getName() + " for MCS connections");
+        return sslContext;
+    }
+
+    /**
+     * Wraps a connected socket. Host and port identify the session to resume.
+     */
+    public SSLSocket createSocket(Socket socket, String host, int port) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, host, port, true);
+        if (setUseSessionTicketsSocket != null) {
+            try {
+                setUseSessionTicketsSocket.invoke(null, sslSocket, true);
+            } catch (Exception ignored) {
+            }
+        }
+        return sslSocket;
+    }
+
+    public SSLEngine createEngine(String host, int port) {
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        if (setUseSessionTicketsEngine != null) {
+            try {
+                setUseSessionTicketsEngine.invoke(null, engine, true);
+            } catch (Exception ignored) {
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Records a completed handshake.
+     *
+     * @param startTime wall clock time when the handshake started, a session created before was resumed
+     * @param durationMs time the handshake took
+     */
+    public void noteHandshake(SSLSession session, long startTime, long durationMs) {
+        int count = handshakes.incrementAndGet();
+        boolean wasResumed = session.getCreationTime() < startTime;
+        int resumedCount = wasResumed ? resumed.incrementAndGet() : resumed.get();
+        long total = totalHandshakeMs.addAndGet(durationMs);
+        Log.d(TAG, "Handshake " + (wasResumed ? "resumed" : "full") + " in " + durationMs + "ms with " + session.getProtocol() +
+                ", resumed " + resumedCount + "/" + count + ", avg " + total / count + "ms");
+    }
+
+    public int getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    public int getResumedCount() {
+        return resumed.get();
+    }
+}
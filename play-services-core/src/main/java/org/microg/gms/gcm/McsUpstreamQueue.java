@@ -0,0 +1,176 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Persistent queue of upstream messages that were not yet acknowledged by the server.
+ * <p>
+ * Messages are removed once the server confirmed the stream id they were sent with (through
+ * {@code last_stream_id_received}) or acknowledged them with a {@code SelectiveAck}. Stream ids are only valid for a
+ * single connection, everything still queued is sent again after the next login.
+ */
+public class McsUpstreamQueue extends SQLiteOpenHelper {
+    private static final String TAG = "GmsGcmUpstreamQueue";
+    public static final String DB_NAME = "gcmupstream";
+    private static final int DB_VERSION = 1;
+    private static final String CREATE_TABLE_MESSAGES = "CREATE TABLE messages (" +
+            "id TEXT," +
+            "persistent_id TEXT," +
+            "package_name TEXT," +
+            "expires INTEGER," +
+            "data BLOB," +
+            "PRIMARY KEY (id));";
+    private static final String TABLE_MESSAGES = "messages";
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_PERSISTENT_ID = "persistent_id";
+    private static final String FIELD_PACKAGE_NAME = "package_name";
+    private static final String FIELD_EXPIRES = "expires";
+    private static final String FIELD_DATA = "data";
+
+    // Maximum time to live of upstream messages, also used if the app did not specify one
+    public static final int MAX_TTL_SECONDS = 28 * 24 * 60 * 60;
+
+    // Stream ids of the current connection mapped to the id of the queued message sent with it
+    private final TreeMap<Integer, String> inFlight = new TreeMap<>();
+    // Ids of queued messages that were already handed to the current connection
+    private final Set<String> sending = new HashSet<>();
+
+    public McsUpstreamQueue(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        this.setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_MESSAGES);
+    }
+
+    public synchronized void add(DataMessageStanza message, int ttlSeconds) {
+        long expires = System.currentTimeMillis() + Math.min(ttlSeconds, MAX_TTL_SECONDS) * 1000L;
+        ContentValues cv = new ContentValues();
+        cv.put(FIELD_ID, message.id);
+        cv.put(FIELD_PERSISTENT_ID, message.persistent_id);
+        cv.put(FIELD_PACKAGE_NAME, message.category);
+        cv.put(FIELD_EXPIRES, expires);
+        cv.put(FIELD_DATA, message.encode());
+        // Fails rather than replacing a queued message that has the same id
+        getWritableDatabase().insertOrThrow(TABLE_MESSAGES, null, cv);
+    }
+
+    /**
+     * Marks a message as sent on the current connection, so it is not returned by {@link #getPending()}.
+     *
+     * @return false if the message was already sent on the current connection
+     */
+    public synchronized boolean markSending(String id) {
+        return sending.add(id);
+    }
+
+    /**
+     * Clears the mark of a message that was not handed to the connection after all, so it is sent again.
+     */
+    public synchronized void unmarkSending(String id) {
+        sending.remove(id);
+    }
+
+    /**
+     * Drops expired messages and returns all others in the order they were queued, except those already sent on the
+     * current connection. The returned messages are marked as sent.
+     */
+    public synchronized List<DataMessageStanza> getPending() {
+        SQLiteDatabase db = getWritableDatabase();
+        int expired = db.delete(TABLE_MESSAGES, FIELD_EXPIRES + " < ?", new String[]{Long.toString(System.currentTimeMillis())});
+        if (expired > 0) Log.d(TAG, "Dropped " + expired + " expired upstream messages");
+        List<DataMessageStanza> result = new ArrayList<>();
+        Cursor cursor = db.query(TABLE_MESSAGES, new String[]{FIELD_DATA}, null, null, null, null, "rowid");
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    try {
+                        DataMessageStanza message = DataMessageStanza.ADAPTER.decode(cursor.getBlob(0));
+                        if (sending.add(message.id)) result.add(message);
+                    } catch (Exception e) {
+                        Log.w(TAG, e);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forget stream ids and sent messages of the previous connection.
+     */
+    public synchronized void resetStreamIds() {
+        inFlight.clear();
+        sending.clear();
+    }
+
+    public synchronized void noteSent(String id, int streamId) {
+        if (id != null) inFlight.put(streamId, id);
+    }
+
+    /**
+     * Removes all messages that were sent with a stream id up to and including {@code lastStreamIdReceived}.
+     */
+    public synchronized void confirmStreamId(int lastStreamIdReceived) {
+        Map<Integer, String> confirmed = inFlight.headMap(lastStreamIdReceived, true);
+        if (confirmed.isEmpty()) return;
+        remove(FIELD_ID, confirmed.values());
+        confirmed.clear();
+    }
+
+    /**
+     * Removes all messages with the given (persistent) ids, as received in a {@code SelectiveAck}.
+     */
+    public synchronized void confirmIds(Collection<String> ids) {
+        if (ids.isEmpty()) return;
+        remove(FIELD_ID, ids);
+        remove(FIELD_PERSISTENT_ID, ids);
+        Iterator<String> iterator = inFlight.values().iterator();
+        while (iterator.hasNext()) {
+            if (ids.contains(iterator.next())) iterator.remove();
+        }
+    }
+
+    private void remove(String field, Collection<String> ids) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String id : ids) {
+                db.delete(TABLE_MESSAGES, field + " = ?", new String[]{id});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Version 1 is the only schema so far
+    }
+}
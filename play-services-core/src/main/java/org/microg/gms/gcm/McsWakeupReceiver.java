@@ -0,0 +1,37 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import static org.microg.gms.gcm.McsConstants.ACTION_SCHEDULE_WAKEUP;
+import static org.microg.gms.gcm.McsConstants.ACTION_WAKEUP;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Receives the alarm of {@link McsWakeupScheduler} and wakeups scheduled from other processes. Not exported, so only
+ * we can trigger or reschedule wakeups.
+ */
+public class McsWakeupReceiver extends BroadcastReceiver {
+    private static final String TAG = "GmsGcmWakeupRcv";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        try {
+            if (ACTION_SCHEDULE_WAKEUP.equals(intent.getAction())) {
+                McsWakeupScheduler.get(context).handleScheduleIntent(intent);
+            } else if (ACTION_WAKEUP.equals(intent.getAction())) {
+                if (McsWakeupScheduler.get(context).onAlarm()) {
+                    TriggerReceiver.trigger(context, intent);
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, e);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import static android.app.AlarmManager.ELAPSED_REALTIME_WAKEUP;
+import static org.microg.gms.gcm.McsConstants.ACTION_HEARTBEAT;
+import static org.microg.gms.gcm.McsConstants.ACTION_SCHEDULE_WAKEUP;
+import static org.microg.gms.gcm.McsConstants.ACTION_WAKEUP;
+import static org.microg.gms.gcm.McsConstants.EXTRA_REASON;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.legacy.content.WakefulBroadcastReceiver;
+
+import org.microg.gms.common.ForegroundServiceContext;
+import org.microg.gms.common.PackageUtils;
+
+/**
+ * Single alarm for the periodic wakeups of the persistent process: MCS heartbeats and MCS reconnects.
+ * <p>
+ * Every wakeup is scheduled with a window in which it may run. The alarm is set to the end of the earliest window,
+ * and when it fires, all wakeups whose windows already started run together.
+ * <p>
+ * Checkin never sets the alarm, as it must not wake the device. It has its own non-waking alarm, and is run earlier
+ * along with the alarm or right after a heartbeat if it is due by then, as the radio is awake anyway.
+ * <p>
+ * Must only be used in the persistent process, other processes use {@link #schedule(Context, int, long, long)}, which
+ * forwards the request.
+ */
+public class McsWakeupScheduler {
+    private static final String TAG = "GmsGcmWakeup";
+    private static final String PREFS_NAME = "gcm_wakeup_scheduler";
+    private static final String PREF_CHECKIN_TIME = "checkin_time";
+
+    public static final int HEARTBEAT = 0;
+    public static final int RECONNECT = 1;
+    public static final int CHECKIN = 2;
+    private static final String[] NAMES = {"heartbeat", "reconnect", "checkin"};
+
+    private static final String EXTRA_TYPE = "type";
+    private static final String EXTRA_EARLIEST = "earliest";
+    private static final String EXTRA_LATEST = "latest";
+
+    private static McsWakeupScheduler instance;
+
+    private final Context context;
+    private final AlarmManager alarmManager;
+    private final SharedPreferences preferences;
+    private final PendingIntent alarmIntent;
+    // Window of each wakeup in elapsed realtime, 0 if not scheduled
+    private final long[] earliest = new long[NAMES.length];
+    private final long[] latest = new long[NAMES.length];
+    private long alarmTime = 0;
+    private int wakeups = 0;
+    private int savedWakeups = 0;
+
+    public static synchronized McsWakeupScheduler get(Context context) {
+        if (instance == null) instance = new McsWakeupScheduler(context.getApplicationContext());
+        return instance;
+    }
+
+    private McsWakeupScheduler(Context context) {
+        this.context = context;
+        this.alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        this.preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.alarmIntent = PendingIntent.getBroadcast(context, 2, new Intent(ACTION_WAKEUP, null, context, McsWakeupReceiver.class), 0);
+        // Checkin is due only every few hours, so it has to survive restarts of the process
+        long checkinTime = preferences.getLong(PREF_CHECKIN_TIME, 0);
+        if (checkinTime > 0) {
+            earliest[CHECKIN] = Math.max(1, checkinTime - System.currentTimeMillis() + SystemClock.elapsedRealtime());
+            latest[CHECKIN] = earliest[CHECKIN];
+        }
+    }
+
+    /**
+     * Schedules a wakeup from any process.
+     *
+     * @param earliest elapsed realtime from which on the wakeup may run
+     * @param latest   elapsed realtime at which the wakeup has to run, ignored for {@link #CHECKIN}
+     */
+    public static void schedule(Context context, int type, long earliest, long latest) {
+        if (PackageUtils.isPersistentProcess()) {
+            get(context).set(type, earliest, latest);
+        } else {
+            context.sendBroadcast(new Intent(ACTION_SCHEDULE_WAKEUP, null, context, McsWakeupReceiver.class)
+                    .putExtra(EXTRA_TYPE, type)
+                    .putExtra(EXTRA_EARLIEST, earliest)
+                    .putExtra(EXTRA_LATEST, latest));
+        }
+    }
+
+    /**
+     * Handles a wakeup scheduled from another process.
+     */
+    public void handleScheduleIntent(Intent intent) {
+        int type = intent.getIntExtra(EXTRA_TYPE, -1);
+        if (type < 0 || type >= NAMES.length) return;
+        set(type, intent.getLongExtra(EXTRA_EARLIEST, 0), intent.getLongExtra(EXTRA_LATEST, 0));
+    }
+
+    public synchronized void set(int type, long earliest, long latest) {
+        this.earliest[type] = Math.max(1, earliest);
+        this.latest[type] = Math.max(this.earliest[type], latest);
+        if (type == CHECKIN) {
+            preferences.edit()
+                    .putLong(PREF_CHECKIN_TIME, earliest - SystemClock.elapsedRealtime() + System.currentTimeMillis())
+                    .apply();
+        }
+        updateAlarm();
+    }
+
+    public synchronized void cancel(int type) {
+        earliest[type] = 0;
+        latest[type] = 0;
+        if (type == CHECKIN) preferences.edit().remove(PREF_CHECKIN_TIME).apply();
+        updateAlarm();
+    }
+
+    /**
+     * Called when the alarm fired. Runs heartbeat and checkin if their windows started.
+     *
+     * @return true if a reconnect is due, which is then up to the caller. Also true if nothing was scheduled, e.g.
+     * because the process was restarted in between.
+     */
+    public synchronized boolean onAlarm() {
+        alarmTime = 0;
+        long now = SystemClock.elapsedRealtime();
+        boolean anyScheduled = false;
+        boolean reconnect = false;
+        int ran = 0;
+        for (int type = 0; type < NAMES.length; type++) {
+            if (earliest[type] == 0) continue;
+            if (type != CHECKIN) anyScheduled = true;
+            if (earliest[type] > now) continue;
+            ran++;
+            if (type == RECONNECT) {
+                reconnect = true;
+            }
+            run(type);
+        }
+        wakeups++;
+        if (ran > 1) savedWakeups += ran - 1;
+        if (ran > 0) Log.d(TAG, "Ran " + ran + " wakeups together, " + this);
+        updateAlarm();
+        return reconnect || !anyScheduled;
+    }
+
+    /**
+     * Called after a heartbeat was sent. Runs checkin if its window started, while the radio is still up.
+     */
+    public synchronized void onHeartbeatSent() {
+        if (earliest[CHECKIN] == 0 || earliest[CHECKIN] > SystemClock.elapsedRealtime()) return;
+        Log.d(TAG, "Running checkin along with heartbeat");
+        run(CHECKIN);
+        savedWakeups++;
+        updateAlarm();
+    }
+
+    private void run(int type) {
+        earliest[type] = 0;
+        latest[type] = 0;
+        switch (type) {
+            case HEARTBEAT:
+                WakefulBroadcastReceiver.startWakefulService(new ForegroundServiceContext(context), new Intent(ACTION_HEARTBEAT, null, context, McsService.class)
+                        .putExtra(EXTRA_REASON, "wakeup"));
+                break;
+            case CHECKIN:
+                preferences.edit().remove(PREF_CHECKIN_TIME).apply();
+                context.sendBroadcast(new Intent("android.server.checkin.CHECKIN", null, context, org.microg.gms.checkin.TriggerReceiver.class));
+                break;
+            case RECONNECT:
+                // Handled by the caller of onAlarm()
+                break;
+        }
+    }
+
+    private void updateAlarm() {
+        long next = 0;
+        for (int type = 0; type < NAMES.length; type++) {
+            if (type == CHECKIN) continue;
+            if (latest[type] != 0 && (next == 0 || latest[type] < next)) next = latest[type];
+        }
+        if (next == alarmTime) return;
+        alarmTime = next;
+        if (next == 0) {
+            alarmManager.cancel(alarmIntent);
+        } else {
+            // This is supposed to work even when running in idle and without battery optimization disabled
+            alarmManager.setExactAndAllowWhileIdle(ELAPSED_REALTIME_WAKEUP, next, alarmIntent);
+        }
+    }
+
+    public synchronized int getWakeupCount() {
+        return wakeups;
+    }
+
+    public synchronized int getSavedWakeupCount() {
+        return savedWakeups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("McsWakeupScheduler{wakeups=").append(wakeups).append(", saved=").append(savedWakeups);
+        long now = SystemClock.elapsedRealtime();
+        for (int type = 0; type < NAMES.length; type++) {
+            if (earliest[type] == 0) continue;
+            sb.append(", ").append(NAMES[type]).append("=[").append((earliest[type] - now) / 1000).append("s, ")
+                    .append((latest[type] - now) / 1000).append("s]");
+        }
+        return sb.append("}").toString();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * SPDX-FileCopyrightText: 2023, microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Append-only journal of persistent ids of received messages that were not yet acknowledged to the server.
+ * <p>
+ * Every change is a single append of one line ({@code +id} or {@code -id}) to a file in the persistent process, so
+ * recording an id is O(1) and survives process death. The journal is rewritten with only the remaining ids when
+ * {@link #compact()} is called or when it mostly consists of removed ids.
+ */
+public class PersistentIdJournal implements Closeable {
+    private static final String TAG = "GmsGcmIdJournal";
+    private static final String FILE_NAME = "gcm_persistent_ids";
+
+    private final AppendLog log;
+    private final LinkedHashSet<String> ids = new LinkedHashSet<>();
+
+    public PersistentIdJournal(Context context) {
+        this.log = new AppendLog(new File(context.getFilesDir(), FILE_NAME), TAG);
+        if (log.exists()) {
+            log.read(this::onLine);
+        } else {
+            // Migrate the ids stored by earlier versions in the settings provider
+            ids.addAll(GcmPrefs.get(context).getLastPersistedIds());
+            GcmPrefs.clearLastPersistedId(context);
+            compact();
+        }
+    }
+
+    private void onLine(String line) {
+        if (line.length() < 2) return;
+        if (line.charAt(0) == '+') {
+            ids.add(line.substring(1));
+        } else if (line.charAt(0) == '-') {
+            ids.remove(line.substring(1));
+        }
+    }
+
+    public synchronized void add(String id) {
+        if (ids.add(id)) log.append("+" + id);
+    }
+
+    public synchronized void removeAll(Collection<String> removed) {
+        for (String id : removed) {
+            if (ids.remove(id)) log.append("-" + id);
+        }
+        if (log.getRecords() > 64 && log.getRecords() > ids.size() * 4) compact();
+    }
+
+    /**
+     * @return a snapshot of all ids in the order they were received
+     */
+    public synchronized List<String> getIds() {
+        return new ArrayList<>(ids);
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    /**
+     * Rewrites the journal to only contain the remaining ids.
+     */
+    public synchronized void compact() {
+        List<String> lines = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            lines.add("+" + id);
+        }
+        log.rewrite(lines);
+    }
+
+    @Override
+    public synchronized void close() {
+        log.close();
+    }
+}
@@ -16,15 +16,12 @@
 
 package org.microg.gms.gcm;
 
-import static android.os.Build.VERSION.SDK_INT;
-import static android.os.Build.VERSION_CODES.N;
 import static org.microg.gms.gcm.McsConstants.ACTION_CONNECT;
 import static org.microg.gms.gcm.McsConstants.ACTION_HEARTBEAT;
 import static org.microg.gms.gcm.McsConstants.EXTRA_REASON;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.util.Log;
@@ -38,21 +35,16 @@ import org.microg.gms.common.ForegroundServiceContext;
 public class TriggerReceiver extends WakefulBroadcastReceiver {
     private static final String TAG = "GmsGcmTrigger";
     public static final String FORCE_TRY_RECONNECT = "org.microg.gms.gcm.FORCE_TRY_RECONNECT";
-    private static boolean registered = false;
-
-    /**
-     * "Project Svelte" is just there to f**k things up...
-     */
-    public synchronized static void register(Context context) {
-        if (SDK_INT >= N && !registered) {
-            IntentFilter intentFilter = new IntentFilter("android.net.conn.CONNECTIVITY_CHANGE");
-            context.getApplicationContext().registerReceiver(new TriggerReceiver(), intentFilter);
-            registered = true;
-        }
-    }
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        trigger(context, intent);
+    }
+
+    /**
+     * Connects or sends a heartbeat as needed, also used for reconnects from {@link McsWakeupReceiver}.
+     */
+    static void trigger(Context context, Intent intent) {
         try {
             boolean force = "android.provider.Telephony.SECRET_CODE".equals(intent.getAction()) || FORCE_TRY_RECONNECT.equals(intent.getAction());
             ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -63,7 +55,7 @@ public class TriggerReceiver extends WakefulBroadcastReceiver {
             }
 
             if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
-                McsService.resetCurrentDelay();
+                McsService.resetCurrentDelay(context);
             }
 
             if (LastCheckinInfo.read(context).getAndroidId() == 0) {
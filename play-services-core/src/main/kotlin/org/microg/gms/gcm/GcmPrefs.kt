@@ -6,7 +6,6 @@ import android.content.Context
 import android.content.Intent
 import android.net.ConnectivityManager
 import android.net.NetworkInfo
-import android.util.Log
 import org.microg.gms.gcm.TriggerReceiver.FORCE_TRY_RECONNECT
 import org.microg.mgms.settings.SettingsContract
 import org.microg.mgms.settings.SettingsContract.Gcm
@@ -24,12 +23,14 @@ data class GcmPrefs(
     val learntMobileInterval: Int,
     val learntWifiInterval: Int,
     val learntOtherInterval: Int,
+    val nioConnection: Boolean,
+    val adaptiveHeartbeat: Boolean,
 ) {
 
     val isEnabled: Boolean get() = gcmEnabled
 
     val lastPersistedIds: List<String>
-        get() = if (lastPersistedId.isNullOrEmpty()) emptyList() else lastPersistedId.split("\\|")
+        get() = if (lastPersistedId.isNullOrEmpty()) emptyList() else lastPersistedId.split("|")
 
     companion object {
         const val PREF_NETWORK_MOBILE = Gcm.NETWORK_MOBILE
@@ -51,6 +52,8 @@ data class GcmPrefs(
                     learntMobileInterval = c.getInt(7),
                     learntWifiInterval = c.getInt(8),
                     learntOtherInterval = c.getInt(9),
+                    nioConnection = c.getInt(10) != 0,
+                    adaptiveHeartbeat = c.getInt(11) != 0,
                 )
             }
         }
@@ -113,48 +116,35 @@ data class GcmPrefs(
         }
     }
 
-    fun learnTimeout(context: Context, pref: String) {
-        Log.d("GmsGcmPrefs", "learnTimeout: $pref")
-        when (pref) {
-            PREF_NETWORK_MOBILE, PREF_NETWORK_ROAMING -> setSettings(context, Gcm.getContentUri(context)) {
-                val newInterval = (learntMobileInterval * 0.95).toInt()
-                put(Gcm.LEARNT_MOBILE, newInterval)
-            }
-            PREF_NETWORK_WIFI -> setSettings(context, Gcm.getContentUri(context)) {
-                val newInterval = (learntMobileInterval * 0.95).toInt()
-                put(Gcm.LEARNT_WIFI, newInterval)
-            }
-            else -> setSettings(context, Gcm.getContentUri(context)) {
-                val newInterval = (learntMobileInterval * 0.95).toInt()
-                put(Gcm.LEARNT_OTHER, newInterval)
-            }
+    /**
+     * @return true if the heartbeat interval for the network type is not configured, but learnt
+     */
+    fun isHeartbeatLearntFor(pref: String): Boolean {
+        return when (pref) {
+            PREF_NETWORK_ROAMING -> networkRoaming == 0
+            PREF_NETWORK_MOBILE -> networkMobile == 0
+            PREF_NETWORK_WIFI -> networkWifi == 0
+            else -> networkOther == 0
         }
     }
 
-    fun learnReached(context: Context, pref: String, time: Long) {
-        Log.d("GmsGcmPrefs", "learnReached: $pref / $time")
-        when (pref) {
-            PREF_NETWORK_MOBILE, PREF_NETWORK_ROAMING -> {
-                if (time > learntMobileInterval / 4 * 3) {
-                    setSettings(context, Gcm.getContentUri(context)) {
-                        put(Gcm.LEARNT_MOBILE, SettingsProvider.INTERVAL)
-                    }
-                }
-            }
-            PREF_NETWORK_WIFI -> {
-                if (time > learntWifiInterval / 4 * 3) {
-                    setSettings(context, Gcm.getContentUri(context)) {
-                        put(Gcm.LEARNT_WIFI, SettingsProvider.INTERVAL)
-                    }
-                }
-            }
-            else -> {
-                if (time > learntOtherInterval / 4 * 3) {
-                    setSettings(context, Gcm.getContentUri(context)) {
-                        put(Gcm.LEARNT_OTHER, SettingsProvider.INTERVAL)
-                    }
-                }
-            }
+    /**
+     * Stores the interval learnt for the current network of the given type, to be displayed in the settings.
+     */
+    fun setLearntInterval(context: Context, pref: String, interval: Int) {
+        val key = when (pref) {
+            PREF_NETWORK_MOBILE, PREF_NETWORK_ROAMING -> Gcm.LEARNT_MOBILE
+            PREF_NETWORK_WIFI -> Gcm.LEARNT_WIFI
+            else -> Gcm.LEARNT_OTHER
+        }
+        val current = when (key) {
+            Gcm.LEARNT_MOBILE -> learntMobileInterval
+            Gcm.LEARNT_WIFI -> learntWifiInterval
+            else -> learntOtherInterval
+        }
+        if (current == interval) return
+        setSettings(context, Gcm.getContentUri(context)) {
+            put(key, interval)
         }
     }
 
@@ -162,11 +152,4 @@ data class GcmPrefs(
         return isEnabled && info != null && getHeartbeatMsFor(info) >= 0
     }
 
-    fun extendLastPersistedId(context: Context, id: String) {
-        val newId = if (lastPersistedId.isNullOrEmpty()) id else "$lastPersistedId|$id"
-        setSettings(context, Gcm.getContentUri(context)) {
-            put(Gcm.LAST_PERSISTENT_ID, newId)
-        }
-    }
-
 }
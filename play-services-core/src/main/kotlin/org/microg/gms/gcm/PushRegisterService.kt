@@ -127,6 +127,7 @@ class PushRegisterService : LifecycleService() {
     private suspend fun register(intent: Intent) {
         val packageName = intent.appPackageName ?: throw RuntimeException("No package provided")
         ensureAppRegistrationAllowed(this, database, packageName)
+        McsService.noteAppActive(packageName)
         Log.d(TAG, "register[req]: " + intent.toString() + " extras=" + intent.extras)
         val bundle = completeRegisterRequest(this, database,
                 RegisterRequest()
@@ -285,6 +286,7 @@ internal class PushRegisterHandler(private val context: Context, private val dat
             return
         }
         Log.d(TAG, "handleMessage: package=$packageName what=$what id=$id")
+        McsService.noteAppActive(packageName)
         val oneWay = data.getBoolean("oneWay", false)
         when (what) {
             0, 1 -> {
@@ -33,6 +33,8 @@ private fun GcmPrefs.toConfiguration(): ServiceConfiguration = ServiceConfigurat
 class ServiceInfoReceiver : BroadcastReceiver() {
     override fun onReceive(context: Context, intent: Intent) {
         try {
+            // Message counters are collected in memory, make sure the caller reads up-to-date values from the database
+            McsService.flushMessageStats()
             context.sendOrderedBroadcast(Intent(ACTION_SERVICE_INFO_RESPONSE).apply {
                 setPackage(context.packageName)
                 val prefs = GcmPrefs.get(context)
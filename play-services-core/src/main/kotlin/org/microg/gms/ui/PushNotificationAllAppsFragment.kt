@@ -18,6 +18,7 @@ import com.mgoogle.android.gms.R
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import org.microg.gms.gcm.GcmDatabase
+import org.microg.gms.gcm.getGcmServiceInfo
 
 class PushNotificationAllAppsFragment : PreferenceFragmentCompat() {
     private lateinit var database: GcmDatabase
@@ -54,6 +55,8 @@ class PushNotificationAllAppsFragment : PreferenceFragmentCompat() {
     private fun updateContent() {
         val context = requireContext()
         lifecycleScope.launchWhenResumed {
+            // Flushes pending message counters in the persistent process
+            getGcmServiceInfo(context.applicationContext)
             val apps = withContext(Dispatchers.IO) {
                 val res = database.appList.map { app ->
                     app to context.packageManager.getApplicationInfoIfExists(app.packageName)
@@ -20,6 +20,7 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import org.microg.gms.gcm.GcmDatabase
 import org.microg.gms.gcm.PushRegisterManager
+import org.microg.gms.gcm.getGcmServiceInfo
 
 class PushNotificationAppPreferencesFragment : PreferenceFragmentCompat() {
     private lateinit var wakeForDelivery: TwoStatePreference
@@ -100,7 +101,10 @@ class PushNotificationAppPreferencesFragment : PreferenceFragmentCompat() {
     }
 
     private fun updateDetails() {
+        val appContext = requireContext().applicationContext
         lifecycleScope.launchWhenResumed {
+            // Flushes pending message counters in the persistent process
+            getGcmServiceInfo(appContext)
             val app = packageName?.let { database.getApp(it) }
             wakeForDelivery.isChecked = app?.wakeForDelivery ?: true
             allowRegister.isChecked = app?.allowRegister ?: true
@@ -86,6 +86,8 @@ class PushNotificationPreferencesFragment : PreferenceFragmentCompat() {
         val appContext = requireContext().applicationContext
         val context = requireContext()
         lifecycleScope.launchWhenResumed {
+            // Flushes pending message counters in the persistent process
+            getGcmServiceInfo(appContext)
             val (apps, showAll) = withContext(Dispatchers.IO) {
                 val apps = database.appList.sortedByDescending { it.lastMessageTimestamp }
                 val res = apps.map { app ->